@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2014 Laurent CLOUET
+ * Author Laurent CLOUET <laurent.clouet@nopnop.net>
+ *
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+
+package com.sheepit.client.benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Shell script used as renderer: it prints the output of Cycles rendering tile by tile, writes a random image
+ * and appends the start and end time (ms since epoch) of the render to a log, so the idle time between the renders can be measured.
+ */
+public class FakeRenderer {
+	private File timingLog;
+	private double renderTime; // in second
+	private int tiles;
+	private long frameSize; // in bytes
+	
+	public FakeRenderer(File timing_log_, double render_time_, int tiles_, long frame_size_) {
+		this.timingLog = timing_log_;
+		this.renderTime = render_time_;
+		this.tiles = tiles_;
+		this.frameSize = frame_size_;
+	}
+	
+	public String getScript() {
+		StringBuilder script = new StringBuilder();
+		script.append("#!/bin/sh\n");
+		script.append("start=$(date +%s%3N)\n");
+		script.append("out=''\n");
+		script.append("frame=''\n");
+		script.append("while [ $# -gt 0 ]; do\n");
+		script.append("\tcase \"$1\" in\n");
+		script.append("\t\t-o) out=\"$2\"; shift ;;\n");
+		script.append("\t\t-f) frame=\"$2\"; shift ;;\n");
+		script.append("\tesac\n");
+		script.append("\tshift\n");
+		script.append("done\n");
+		script.append("echo 'Blender 2.73 (sub 0), Commit date: 2015-01-20 18:16, Hash bbf09d9'\n");
+		script.append("echo 'Read blend: scene.blend'\n");
+		script.append("tile=1\n");
+		script.append(String.format("while [ $tile -le %d ]; do\n", this.tiles));
+		script.append(String.format(Locale.ROOT, "\tsleep %.3f\n", this.renderTime / this.tiles));
+		script.append(String.format("\techo \"Fra:$frame Mem:$((35 + tile)).81M (0.00M, Peak $((36 + tile)).12M) | Time:00:00.52 | Remaining:00:05.12 | Mem:3.11M, Peak:3.11M | Scene, RenderLayer | Path Tracing Tile $tile/%d\"\n", this.tiles));
+		script.append(String.format("\techo \"Fra:$frame Mem:$((35 + tile)).81M (0.00M, Peak $((36 + tile)).12M) | Time:00:00.52 | Mem:3.11M, Peak:3.11M | Scene, RenderLayer | Rendered $tile/%d Tiles, Sample 16/16\"\n", this.tiles));
+		script.append("\ttile=$((tile + 1))\n");
+		script.append("done\n");
+		script.append(String.format("head -c %d /dev/urandom > \"$out$frame.png\"\n", this.frameSize));
+		script.append("echo \"Saved: $out$frame.png Time: 00:05.12 (Saving: 00:00.07)\"\n");
+		script.append(String.format("echo \"$start $(date +%%s%%3N)\" >> '%s'\n", this.timingLog.getAbsolutePath()));
+		return script.toString();
+	}
+	
+	/**
+	 * @return start and end (ms since epoch) of every render done so far
+	 */
+	public List<long[]> readRenders() throws IOException {
+		List<long[]> renders = new ArrayList<long[]>();
+		if (this.timingLog.exists() == false) {
+			return renders;
+		}
+		BufferedReader reader = new BufferedReader(new FileReader(this.timingLog));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] times = line.trim().split(" ");
+				if (times.length == 2) {
+					renders.add(new long[] { Long.parseLong(times[0]), Long.parseLong(times[1]) });
+				}
+			}
+		}
+		finally {
+			reader.close();
+		}
+		return renders;
+	}
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2014 Laurent CLOUET
+ * Author Laurent CLOUET <laurent.clouet@nopnop.net>
+ *
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+
+package com.sheepit.client.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import com.sheepit.client.Utils;
+
+/**
+ * Synthetic inputs of the benchmarks, generated at setup time with a fixed seed so every run works on the same data
+ */
+public class Fixtures {
+	public static final long SEED = 42;
+	public static final String SCENE_FILE = "scene.blend"; // in the scene archives
+	
+	public static File createTempDirectory(String prefix_) throws IOException {
+		File dir = File.createTempFile(prefix_, "");
+		dir.delete();
+		if (dir.mkdir() == false) {
+			throw new IOException("failed to create " + dir);
+		}
+		return dir;
+	}
+	
+	/**
+	 * Random content, it can not be compressed
+	 */
+	public static File createFile(File dir_, String name_, long size_) throws IOException {
+		File file = new File(dir_, name_);
+		Random random = new Random(SEED);
+		byte[] buffer = new byte[64 * 1024];
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			long remaining = size_;
+			while (remaining > 0) {
+				random.nextBytes(buffer);
+				int len = (int) Math.min(buffer.length, remaining);
+				out.write(buffer, 0, len);
+				remaining -= len;
+			}
+		}
+		finally {
+			out.close();
+		}
+		return file;
+	}
+	
+	public static File createSceneArchive(File dir_, int nb_files_, long total_size_) throws IOException {
+		return createSceneArchive(dir_, "scene.zip", nb_files_, total_size_);
+	}
+	
+	/**
+	 * Archive looking like a scene: a scene.blend, a few big textures and a lot of small files, half of the content compresses well.
+	 * Archives with different names have different content.
+	 */
+	public static File createSceneArchive(File dir_, String name_, int nb_files_, long total_size_) throws IOException {
+		File file = new File(dir_, name_);
+		Random random = new Random(SEED + name_.hashCode());
+		ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file));
+		try {
+			byte[] blend = new byte[64 * 1024];
+			random.nextBytes(blend);
+			out.putNextEntry(new ZipEntry(SCENE_FILE));
+			out.write(blend);
+			out.closeEntry();
+			out.putNextEntry(new ZipEntry("textures/"));
+			out.closeEntry();
+			long remaining = total_size_;
+			for (int i = 0; i < nb_files_ && remaining > 0; i++) {
+				long size = (i < nb_files_ / 10) ? total_size_ / 20 : Math.max(1, total_size_ / (2L * nb_files_));
+				size = Math.min(size, remaining);
+				remaining -= size;
+				out.putNextEntry(new ZipEntry((i < nb_files_ / 10 ? "textures/" : "") + "file_" + i + ".bin"));
+				byte[] buffer = new byte[(int) Math.min(size, 64 * 1024)];
+				long written = 0;
+				while (written < size) {
+					if (i % 2 == 0) {
+						random.nextBytes(buffer);
+					}
+					int len = (int) Math.min(buffer.length, size - written);
+					out.write(buffer, 0, len);
+					written += len;
+				}
+				out.closeEntry();
+			}
+		}
+		finally {
+			out.close();
+		}
+		return file;
+	}
+	
+	/**
+	 * Output of Blender rendering a frame with Cycles, as it's read by the client
+	 */
+	public static String[] createRendererOutput(int nb_tiles_) {
+		String[] lines = new String[nb_tiles_ * 2 + 4];
+		int i = 0;
+		lines[i++] = "Blender 2.73 (sub 0), Commit date: 2015-01-20 18:16, Hash bbf09d9";
+		lines[i++] = "Read blend: /tmp/scene/scene.blend";
+		for (int tile = 1; tile <= nb_tiles_; tile++) {
+			int seconds = tile * 3;
+			int remaining = (nb_tiles_ - tile) * 3;
+			lines[i++] = String.format("Fra:1 Mem:%d.81M (0.00M, Peak %d.12M) | Time:%02d:%02d.52 | Remaining:%02d:%02d.12 | Mem:3.11M, Peak:3.11M | Scene, RenderLayer | Path Tracing Tile %d/%d", 35 + tile, 36 + tile, seconds / 60, seconds % 60, remaining / 60, remaining % 60, tile, nb_tiles_);
+			lines[i++] = String.format("Fra:1 Mem:%d.81M (0.00M, Peak %d.12M) | Time:%02d:%02d.16 | Mem:3.11M, Peak:3.11M | Scene, RenderLayer | Rendered %d/%d Tiles, Sample 16/16", 35 + tile, 36 + tile, seconds / 60, seconds % 60, tile, nb_tiles_);
+		}
+		lines[i++] = "Fra:1 Mem:12.00M (0.00M, Peak 180.12M) | Time:05:12.33 | Sce: Scene Ve:0 Fa:0 La:0";
+		lines[i++] = "Saved: /tmp/cache/rendered_1.png Time: 05:12.40 (Saving: 00:00.07)";
+		return lines;
+	}
+	
+	/**
+	 * Answer of the server to a request-job
+	 */
+	public static String createJobRequestDocument(int nb_files_to_delete_) {
+		StringBuilder xml = new StringBuilder();
+		xml.append("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n");
+		xml.append("<jobrequest status=\"0\">\n");
+		xml.append("<frames remaining=\"1234\" />\n");
+		xml.append("<job id=\"4242\" archive_md5=\"0123456789abcdef0123456789abcdef\" path=\"scene/scene.blend\" use_gpu=\"1\" frame=\"0042\" revision=\"3\" extras=\"\">\n");
+		xml.append("<renderer md5=\"fedcba9876543210fedcba9876543210\" commandline=\".e --factory-startup --disable-autoexec -b .c -o .o -f .f -x 1\" />\n");
+		xml.append("<script>import bpy\nbpy.context.scene.render.use_border = False\nbpy.context.scene.cycles.samples = 64\n</script>\n");
+		xml.append("</job>\n");
+		for (int i = 0; i < nb_files_to_delete_; i++) {
+			xml.append(String.format("<file md5=\"%032x\" action=\"delete\" />\n", i));
+		}
+		xml.append("</jobrequest>\n");
+		return xml.toString();
+	}
+	
+	public static void delete(File file_) {
+		Utils.delete(file_);
+	}
+}
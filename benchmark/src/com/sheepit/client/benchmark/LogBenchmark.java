@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2014 Laurent CLOUET
+ * Author Laurent CLOUET <laurent.clouet@nopnop.net>
+ *
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+
+package com.sheepit.client.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sheepit.client.Configuration;
+import com.sheepit.client.Log;
+
+/**
+ * Every line of the renderer output goes through the log, on one or several render slots
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LogBenchmark {
+	private File directory;
+	private Log log;
+	private String[] lines;
+	private int step;
+	
+	@Setup
+	public void setUp() throws IOException {
+		this.directory = Fixtures.createTempDirectory("benchmark_log_");
+		Configuration config = new Configuration(this.directory, "", ""); // the log is not printed
+		this.log = Log.getInstance(config);
+		this.step = this.log.newCheckPoint();
+		this.lines = Fixtures.createRendererOutput(135);
+	}
+	
+	@TearDown
+	public void tearDown() {
+		this.log.removeCheckPoint(this.step);
+		Fixtures.delete(this.directory);
+	}
+	
+	@Benchmark
+	public void debug() {
+		this.log.debug(this.lines[10]);
+	}
+	
+	@Benchmark
+	@Threads(4)
+	public void debugConcurrent() {
+		this.log.debug(this.lines[10]);
+	}
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2014 Laurent CLOUET
+ * Author Laurent CLOUET <laurent.clouet@nopnop.net>
+ *
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+
+package com.sheepit.client.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import com.sheepit.client.Utils;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local stand-in of the farm implementing the requests of protocol.txt.
+ * It gives an endless list of frames of a few generated scenes, the renderer is a shell script (FakeRenderer)
+ * who writes Cycles like output and an image.
+ */
+public class MockFarmServer {
+	public static final int FIRST_JOB_ID = 2; // 0 and 1 are the power and compute method projects, they are not uploaded in the background
+	
+	private File directory;
+	private int nbScenes;
+	private long sceneSize;
+	private long uploadDelay; // in ms, processing time of a frame by the server
+	
+	private HttpServer httpServer;
+	private ExecutorService executor;
+	
+	private String rendererScript;
+	private File renderer;
+	private String rendererMD5;
+	private List<File> scenes;
+	private List<String> scenesMD5;
+	
+	private AtomicInteger nextFrame;
+	private AtomicInteger jobsRequested;
+	private AtomicInteger errorsReceived;
+	private AtomicLong bytesDownloaded;
+	private AtomicLong bytesUploaded;
+	private List<Long> validationTimes; // System.currentTimeMillis() of each validated frame
+	
+	/**
+	 * @param fake_renderer_ script used as renderer
+	 * @param scene_size_ in bytes
+	 */
+	public MockFarmServer(File directory_, FakeRenderer fake_renderer_, int nb_scenes_, long scene_size_, long upload_delay_) {
+		this.directory = directory_;
+		this.nbScenes = nb_scenes_;
+		this.sceneSize = scene_size_;
+		this.uploadDelay = upload_delay_;
+		this.httpServer = null;
+		this.executor = null;
+		this.scenes = new ArrayList<File>();
+		this.scenesMD5 = new ArrayList<String>();
+		this.nextFrame = new AtomicInteger(1);
+		this.jobsRequested = new AtomicInteger(0);
+		this.errorsReceived = new AtomicInteger(0);
+		this.bytesDownloaded = new AtomicLong(0);
+		this.bytesUploaded = new AtomicLong(0);
+		this.validationTimes = Collections.synchronizedList(new ArrayList<Long>());
+		
+		this.renderer = new File(this.directory, "renderer.zip");
+		this.rendererScript = fake_renderer_.getScript();
+	}
+	
+	/**
+	 * Generate the archives and listen on a free port of the loopback interface
+	 */
+	public void start() throws IOException {
+		ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(this.renderer));
+		try {
+			zip.putNextEntry(new ZipEntry("rend.exe"));
+			zip.write(this.rendererScript.getBytes(StandardCharsets.UTF_8));
+			zip.closeEntry();
+		}
+		finally {
+			zip.close();
+		}
+		this.rendererMD5 = Utils.md5(this.renderer.getAbsolutePath());
+		
+		for (int i = 0; i < this.nbScenes; i++) {
+			File scene = Fixtures.createSceneArchive(this.directory, "scene_" + i + ".zip", 200, this.sceneSize);
+			this.scenes.add(scene);
+			this.scenesMD5.add(Utils.md5(scene.getAbsolutePath()));
+		}
+		
+		this.httpServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 64);
+		this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "mock-farm");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.httpServer.setExecutor(this.executor);
+		this.httpServer.createContext("/server/config.php", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange_) throws IOException {
+				config(exchange_);
+			}
+		});
+		this.httpServer.createContext("/server/request_job.php", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange_) throws IOException {
+				requestJob(exchange_);
+			}
+		});
+		this.httpServer.createContext("/server/download.php", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange_) throws IOException {
+				download(exchange_);
+			}
+		});
+		this.httpServer.createContext("/server/send_frame.php", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange_) throws IOException {
+				sendFrame(exchange_);
+			}
+		});
+		this.httpServer.createContext("/server/keepmealive.php", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange_) throws IOException {
+				drain(exchange_);
+				answer(exchange_, "<keepmealive status=\"0\" />");
+			}
+		});
+		this.httpServer.createContext("/server/error.php", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange_) throws IOException {
+				errorsReceived.incrementAndGet();
+				drain(exchange_);
+				answer(exchange_, "<error status=\"0\" />");
+			}
+		});
+		this.httpServer.createContext("/account.php", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange_) throws IOException {
+				drain(exchange_);
+				answer(exchange_, "<logout status=\"0\" />");
+			}
+		});
+		this.httpServer.start();
+	}
+	
+	public void stop() {
+		if (this.httpServer != null) {
+			this.httpServer.stop(0);
+			this.executor.shutdownNow();
+			this.httpServer = null;
+		}
+	}
+	
+	public String getUrl() {
+		return "http://127.0.0.1:" + this.httpServer.getAddress().getPort();
+	}
+	
+	public int getJobsRequested() {
+		return this.jobsRequested.get();
+	}
+	
+	public int getErrorsReceived() {
+		return this.errorsReceived.get();
+	}
+	
+	public long getBytesDownloaded() {
+		return this.bytesDownloaded.get();
+	}
+	
+	public long getBytesUploaded() {
+		return this.bytesUploaded.get();
+	}
+	
+	/**
+	 * @return number of frames validated before time_ (System.currentTimeMillis())
+	 */
+	public int getFramesValidatedBefore(long time_) {
+		int count = 0;
+		synchronized (this.validationTimes) {
+			for (long time : this.validationTimes) {
+				if (time <= time_) {
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+	
+	private void config(HttpExchange exchange_) throws IOException {
+		drain(exchange_);
+		answer(exchange_, "<config status=\"0\">" + "<request type=\"validate-job\" path=\"/server/send_frame.php\" />" + "<request type=\"request-job\" path=\"/server/request_job.php\" />" + "<request type=\"download-archive\" path=\"/server/download.php\" />" + "<request type=\"error\" path=\"/server/error.php\" />" + "<request type=\"keepmealive\" path=\"/server/keepmealive.php\" max-period=\"1440\" />" + "<request type=\"logout\" path=\"/account.php?mode=logout&amp;worker=1\" />" + "</config>");
+	}
+	
+	private void requestJob(HttpExchange exchange_) throws IOException {
+		drain(exchange_); // the md5 of the local files
+		this.jobsRequested.incrementAndGet();
+		int frame = this.nextFrame.getAndIncrement();
+		int scene = frame % this.nbScenes;
+		String xml = String.format("<jobrequest status=\"0\">" + "<frames remaining=\"%d\" />" + "<job id=\"%d\" use_gpu=\"0\" archive_md5=\"%s\" revision=\"0\" path=\"%s\" frame=\"%04d\" extras=\"\">" + "<renderer md5=\"%s\" commandline=\".e --factory-startup --disable-autoexec -b .c -o .o -f .f -x 1\" update_method=\"remainingtime\" />" + "<script>import bpy\n</script>" + "</job>" + "</jobrequest>", 100000 - frame, FIRST_JOB_ID + scene, this.scenesMD5.get(scene), Fixtures.SCENE_FILE, frame, this.rendererMD5);
+		answer(exchange_, xml);
+	}
+	
+	private void download(HttpExchange exchange_) throws IOException {
+		drain(exchange_);
+		Map<String, String> args = parseQuery(exchange_.getRequestURI().getRawQuery());
+		File file = null;
+		if ("binary".equals(args.get("type"))) {
+			file = this.renderer;
+		}
+		else if ("job".equals(args.get("type")) && args.containsKey("job")) {
+			int scene = Integer.parseInt(args.get("job")) - FIRST_JOB_ID;
+			if (scene >= 0 && scene < this.scenes.size()) {
+				file = this.scenes.get(scene);
+			}
+		}
+		if (file == null) {
+			exchange_.sendResponseHeaders(404, -1);
+			exchange_.close();
+			return;
+		}
+		
+		long start = 0;
+		long end = file.length() - 1;
+		String range = exchange_.getRequestHeaders().getFirst("Range");
+		if (range != null && range.startsWith("bytes=")) {
+			String[] bounds = range.substring("bytes=".length()).split("-", -1);
+			start = Long.parseLong(bounds[0]);
+			if (bounds.length > 1 && bounds[1].isEmpty() == false) {
+				end = Math.min(end, Long.parseLong(bounds[1]));
+			}
+			if (start > end) {
+				exchange_.sendResponseHeaders(416, -1);
+				exchange_.close();
+				return;
+			}
+			exchange_.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + file.length());
+		}
+		exchange_.getResponseHeaders().set("Content-Type", "application/zip");
+		exchange_.getResponseHeaders().set("Accept-Ranges", "bytes");
+		exchange_.sendResponseHeaders(range != null ? 206 : 200, end - start + 1);
+		
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		OutputStream out = exchange_.getResponseBody();
+		try {
+			in.seek(start);
+			byte[] buffer = new byte[64 * 1024];
+			long remaining = end - start + 1;
+			while (remaining > 0) {
+				int len = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+				if (len == -1) {
+					break;
+				}
+				out.write(buffer, 0, len);
+				remaining -= len;
+				this.bytesDownloaded.addAndGet(len);
+			}
+		}
+		catch (IOException e) {
+			// the client closed the connection
+		}
+		finally {
+			in.close();
+			exchange_.close();
+		}
+	}
+	
+	private void sendFrame(HttpExchange exchange_) throws IOException {
+		this.bytesUploaded.addAndGet(drain(exchange_));
+		if (this.uploadDelay > 0) {
+			try {
+				Thread.sleep(this.uploadDelay);
+			}
+			catch (InterruptedException e) {
+			}
+		}
+		this.validationTimes.add(System.currentTimeMillis());
+		answer(exchange_, "<jobvalidate status=\"0\" />");
+	}
+	
+	/**
+	 * Read the whole body of the request
+	 * 
+	 * @return the number of bytes read
+	 */
+	private static long drain(HttpExchange exchange_) throws IOException {
+		InputStream in = exchange_.getRequestBody();
+		byte[] buffer = new byte[64 * 1024];
+		long total = 0;
+		int len;
+		while ((len = in.read(buffer)) != -1) {
+			total += len;
+		}
+		in.close();
+		return total;
+	}
+	
+	private static void answer(HttpExchange exchange_, String xml_) throws IOException {
+		byte[] body = ("<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n" + xml_).getBytes(StandardCharsets.UTF_8);
+		exchange_.getResponseHeaders().set("Content-Type", "text/xml; charset=utf-8");
+		exchange_.sendResponseHeaders(200, body.length);
+		OutputStream out = exchange_.getResponseBody();
+		out.write(body);
+		out.close();
+		exchange_.close();
+	}
+	
+	private static Map<String, String> parseQuery(String query_) {
+		Map<String, String> args = new HashMap<String, String>();
+		if (query_ == null) {
+			return args;
+		}
+		for (String pair : query_.split("&")) {
+			int equal = pair.indexOf('=');
+			if (equal > 0) {
+				args.put(pair.substring(0, equal), pair.substring(equal + 1));
+			}
+		}
+		return args;
+	}
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2014 Laurent CLOUET
+ * Author Laurent CLOUET <laurent.clouet@nopnop.net>
+ *
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+
+package com.sheepit.client.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.sheepit.client.Error.ServerCode;
+import com.sheepit.client.RenderOutputParser;
+import com.sheepit.client.ResponseParser;
+import com.sheepit.client.Utils;
+
+/**
+ * Parsing done for every line of the renderer output and for every answer of the server
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ParseBenchmark {
+	private String[] rendererOutput;
+	private byte[] jobRequest;
+	private byte[] keepMeAlive;
+	private String[] numbers;
+	
+	@Setup
+	public void setUp() {
+		this.rendererOutput = Fixtures.createRendererOutput(135);
+		this.jobRequest = Fixtures.createJobRequestDocument(20).getBytes(StandardCharsets.UTF_8);
+		this.keepMeAlive = "<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n<keepmealive status=\"0\" />".getBytes(StandardCharsets.UTF_8);
+		this.numbers = new String[] { "1234", "35.81M", "1,5G", "512K" };
+	}
+	
+	/**
+	 * Output of a whole frame, the listener does what Client's does without the gui
+	 */
+	@Benchmark
+	public void renderOutput(final Blackhole blackhole) {
+		RenderOutputParser parser = new RenderOutputParser(new RenderOutputParser.Listener() {
+			@Override
+			public void memoryUsed(long memory_) {
+				blackhole.consume(memory_);
+			}
+			
+			@Override
+			public void memoryPeak(long memory_) {
+				blackhole.consume(memory_);
+			}
+			
+			@Override
+			public void remainingTime(int seconds_) {
+				blackhole.consume(seconds_);
+			}
+			
+			@Override
+			public void tile(int current_, int total_) {
+				blackhole.consume(current_);
+			}
+			
+			@Override
+			public void sample(int current_, int total_) {
+				blackhole.consume(current_);
+			}
+		});
+		for (String line : this.rendererOutput) {
+			parser.parse(line);
+		}
+	}
+	
+	@Benchmark
+	public void parseNumber(Blackhole blackhole) {
+		for (String number : this.numbers) {
+			blackhole.consume(Utils.parseNumber(number));
+		}
+	}
+	
+	/**
+	 * Same steps as Server.requestJob: parse, check the status and read the job nodes
+	 */
+	@Benchmark
+	public String jobRequest() throws Exception {
+		ResponseParser.JobRequestResponse response = ResponseParser.parseJobRequest(new ByteArrayInputStream(this.jobRequest));
+		if (response.getStatus() != ServerCode.OK) {
+			throw new IllegalStateException("wrong status");
+		}
+		return response.getId() + response.getFrame() + response.getCommandLine() + response.getScript() + response.getFilesToDelete().size();
+	}
+	
+	/**
+	 * What Server.requestJob did before the pull parser, kept as the reference
+	 */
+	@Benchmark
+	public String jobRequestDom() throws Exception {
+		Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new ByteArrayInputStream(this.jobRequest));
+		Element root_node = (Element) document.getElementsByTagName("jobrequest").item(0);
+		if (ServerCode.fromInt(Integer.parseInt(root_node.getAttribute("status"))) != ServerCode.OK) {
+			throw new IllegalStateException("wrong status");
+		}
+		Element job_node = (Element) document.getElementsByTagName("job").item(0);
+		Element renderer_node = (Element) job_node.getElementsByTagName("renderer").item(0);
+		return job_node.getAttribute("id") + job_node.getAttribute("frame") + renderer_node.getAttribute("commandline") + job_node.getElementsByTagName("script").item(0).getTextContent() + document.getElementsByTagName("file").getLength();
+	}
+	
+	/**
+	 * Answer of the keepmealive and of the frame upload, only the status is read
+	 */
+	@Benchmark
+	public ServerCode keepMeAlive() throws Exception {
+		return ResponseParser.parseStatus(new ByteArrayInputStream(this.keepMeAlive), "keepmealive").getStatus();
+	}
+}
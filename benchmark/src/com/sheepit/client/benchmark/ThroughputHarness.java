@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2014 Laurent CLOUET
+ * Author Laurent CLOUET <laurent.clouet@nopnop.net>
+ *
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+
+package com.sheepit.client.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import com.sheepit.client.Client;
+import com.sheepit.client.Configuration;
+import com.sheepit.client.Gui;
+import com.sheepit.client.Utils;
+
+/**
+ * Run the client against MockFarmServer and a FakeRenderer, offline, and measure the frames validated per hour,
+ * the time the render slots are idle and the bytes moved. Several configurations can be given as comma separated values,
+ * every combination is run one after the other.
+ * 
+ * Example: ant throughput -Dthroughput.args="--duration 300 --slots 1,2 --upload-connections 1,4"
+ */
+public class ThroughputHarness {
+	@Option(name = "--duration", usage = "Duration of the measure of each configuration in second", metaVar = "120")
+	private int duration = 120;
+	
+	@Option(name = "--render-time", usage = "Render time of a frame in second (comma separated list)", metaVar = "5")
+	private String renderTimes = "5";
+	
+	@Option(name = "--slots", usage = "Number of render slots (comma separated list)", metaVar = "1,2")
+	private String slots = "1";
+	
+	@Option(name = "--upload-connections", usage = "Number of upload connections (comma separated list)", metaVar = "1,2")
+	private String uploadConnections = "2";
+	
+	@Option(name = "--prefetch", usage = "Prefetch the next job (comma separated list of true/false)", metaVar = "false,true")
+	private String prefetch = "false";
+	
+	@Option(name = "--tiles", usage = "Number of tiles printed by the fake renderer", metaVar = "20")
+	private int tiles = 20;
+	
+	@Option(name = "--frame-size", usage = "Size of a rendered frame in kB", metaVar = "2048")
+	private long frameSize = 2048;
+	
+	@Option(name = "--scenes", usage = "Number of different scenes given by the server", metaVar = "3")
+	private int scenes = 3;
+	
+	@Option(name = "--scene-size", usage = "Size of a scene archive in MB", metaVar = "32")
+	private long sceneSize = 32;
+	
+	@Option(name = "--upload-delay", usage = "Time taken by the server to validate a frame in ms", metaVar = "200")
+	private long uploadDelay = 200;
+	
+	@Option(name = "--download-segments", usage = "Number of connections used to download a large archive", metaVar = "1")
+	private int downloadSegments = 1;
+	
+	/**
+	 * Result of one configuration
+	 */
+	private static class Result {
+		public int frames;
+		public double framesPerHour;
+		public double idleRatio; // idle time of the slots on the whole measure
+		public double startup; // in second, until the first render
+		public int gaps; // number of times a slot became idle after the first render
+		public double meanGap; // in second
+		public long bytesDownloaded;
+		public long bytesUploaded;
+		public int errors;
+		public String timings;
+	}
+	
+	/**
+	 * Gui who does not print the status, only the errors
+	 */
+	private static class QuietGui implements Gui {
+		@Override
+		public void start() {
+		}
+		
+		@Override
+		public void stop() {
+		}
+		
+		@Override
+		public void status(String msg_) {
+		}
+		
+		@Override
+		public void error(String err_) {
+			System.err.println("client error: " + err_);
+		}
+		
+		@Override
+		public void AddFrameRendered() {
+		}
+		
+		@Override
+		public void framesRemaining(int nb_) {
+		}
+	}
+	
+	public static void main(String[] args) throws Exception {
+		if (System.getProperty("http.maxConnections") == null) {
+			System.setProperty("http.maxConnections", "16"); // same pool as Worker.main
+		}
+		new ThroughputHarness().doMain(args);
+		System.exit(0);
+	}
+	
+	public void doMain(String[] args) throws Exception {
+		CmdLineParser parser = new CmdLineParser(this);
+		try {
+			parser.parseArgument(args);
+		}
+		catch (CmdLineException e) {
+			System.err.println(e.getMessage());
+			System.err.println("Usage: ");
+			parser.printUsage(System.err);
+			return;
+		}
+		
+		System.out.println(String.format("%-6s %-8s %-9s %-7s | %7s %9s %6s %9s %5s %9s | %9s %9s %6s", "slots", "uploads", "prefetch", "render", "frames", "frames/h", "idle", "startup", "gaps", "mean gap", "MB down", "MB up", "errors"));
+		for (String render_time : this.renderTimes.split(",")) {
+			for (String nb_slots : this.slots.split(",")) {
+				for (String nb_uploads : this.uploadConnections.split(",")) {
+					for (String use_prefetch : this.prefetch.split(",")) {
+						Result result = this.run(Double.parseDouble(render_time), Integer.parseInt(nb_slots), Integer.parseInt(nb_uploads), Boolean.parseBoolean(use_prefetch));
+						System.out.println(String.format("%-6s %-8s %-9s %-7s | %7d %9.1f %5.1f%% %8.1fs %5d %8.2fs | %9.1f %9.1f %6d", nb_slots, nb_uploads, use_prefetch, render_time + "s", result.frames, result.framesPerHour, 100 * result.idleRatio, result.startup, result.gaps, result.meanGap, result.bytesDownloaded / 1e6, result.bytesUploaded / 1e6, result.errors));
+						System.out.println("    " + result.timings);
+					}
+				}
+			}
+		}
+	}
+	
+	protected Result run(double render_time_, int slots_, int upload_connections_, boolean prefetch_) throws IOException, InterruptedException {
+		File directory = Fixtures.createTempDirectory("sheepit_throughput_");
+		try {
+			File farm_directory = new File(directory, "farm");
+			File cache_directory = new File(directory, "cache");
+			farm_directory.mkdir();
+			cache_directory.mkdir();
+			
+			FakeRenderer renderer = new FakeRenderer(new File(directory, "renders.log"), render_time_, this.tiles, this.frameSize * 1000);
+			MockFarmServer farm = new MockFarmServer(farm_directory, renderer, this.scenes, this.sceneSize * 1000 * 1000, this.uploadDelay);
+			farm.start();
+			
+			Configuration config = new Configuration(cache_directory, "benchmark", "benchmark");
+			config.setNbRenderSlots(slots_);
+			config.setUploadConnections(upload_connections_);
+			config.setPrefetchJob(prefetch_);
+			config.setDownloadSegments(this.downloadSegments);
+			
+			final Client client = new Client(new QuietGui(), config, farm.getUrl());
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					client.run();
+				}
+			});
+			long start = System.currentTimeMillis();
+			thread.start();
+			Thread.sleep(this.duration * 1000L);
+			long end = System.currentTimeMillis();
+			
+			client.askForStop();
+			thread.join((long) (render_time_ * 2000) + 60000); // the current frames are finished and sent
+			
+			Result result = new Result();
+			result.frames = farm.getFramesValidatedBefore(end);
+			result.framesPerHour = result.frames * 3600000.0 / (end - start);
+			result.bytesDownloaded = farm.getBytesDownloaded();
+			result.bytesUploaded = farm.getBytesUploaded();
+			result.errors = farm.getErrorsReceived();
+			result.timings = client.getMetrics().getSummary();
+			this.computeIdleTime(result, renderer.readRenders(), slots_, start, end);
+			
+			client.stop();
+			farm.stop();
+			return result;
+		}
+		finally {
+			Utils.delete(directory);
+		}
+	}
+	
+	/**
+	 * Walk through the starts and ends of the renders to find when less than slots_ renders were running
+	 */
+	private void computeIdleTime(Result result_, List<long[]> renders_, int slots_, long start_, long end_) {
+		List<long[]> events = new ArrayList<long[]>(); // time, +1 or -1
+		for (long[] render : renders_) {
+			long render_start = Math.max(render[0], start_);
+			long render_end = Math.min(render[1], end_);
+			if (render_start < render_end) {
+				events.add(new long[] { render_start, 1 });
+				events.add(new long[] { render_end, -1 });
+			}
+		}
+		if (events.isEmpty()) {
+			result_.idleRatio = 1;
+			result_.startup = (end_ - start_) / 1000.0;
+			return;
+		}
+		Collections.sort(events, new Comparator<long[]>() {
+			@Override
+			public int compare(long[] a, long[] b) {
+				if (a[0] != b[0]) {
+					return a[0] < b[0] ? -1 : 1;
+				}
+				return (int) (a[1] - b[1]); // end before start at the same time
+			}
+		});
+		
+		long first_render = events.get(0)[0];
+		result_.startup = (first_render - start_) / 1000.0;
+		
+		long busy = 0; // slot time spent rendering
+		long idle_after_start = 0;
+		int active = 0;
+		long previous = first_render;
+		for (long[] event : events) {
+			busy += active * (event[0] - previous);
+			if (active < slots_) {
+				idle_after_start += (slots_ - active) * (event[0] - previous);
+			}
+			if (event[1] < 0 && active == slots_ && event[0] < end_) {
+				result_.gaps++;
+			}
+			active += event[1];
+			previous = event[0];
+		}
+		idle_after_start += (slots_ - active) * (end_ - previous);
+		
+		result_.idleRatio = 1 - busy / (double) (slots_ * (end_ - start_));
+		result_.meanGap = result_.gaps > 0 ? idle_after_start / 1000.0 / result_.gaps : 0;
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2014 Laurent CLOUET
+ * Author Laurent CLOUET <laurent.clouet@nopnop.net>
+ *
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+
+package com.sheepit.client.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sheepit.client.Utils;
+
+/**
+ * Checksum and extraction of the archives, done for every new renderer and scene
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class UtilsBenchmark {
+	@Param({ "16", "256" })
+	public int archiveSizeMB;
+	
+	@Param({ "500" })
+	public int archiveFiles;
+	
+	private File directory;
+	private File file;
+	private File archive;
+	private File extractDirectory;
+	
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		this.directory = Fixtures.createTempDirectory("benchmark_utils_");
+		this.file = Fixtures.createFile(this.directory, "file.bin", this.archiveSizeMB * 1024L * 1024L);
+		this.archive = Fixtures.createSceneArchive(this.directory, this.archiveFiles, this.archiveSizeMB * 1024L * 1024L);
+	}
+	
+	@Setup(Level.Invocation)
+	public void createExtractDirectory() {
+		this.extractDirectory = new File(this.directory, "extracted");
+		this.extractDirectory.mkdir();
+	}
+	
+	@TearDown(Level.Invocation)
+	public void deleteExtractDirectory() {
+		Fixtures.delete(this.extractDirectory);
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		Fixtures.delete(this.directory);
+	}
+	
+	@Benchmark
+	public String md5() {
+		return Utils.md5(this.file.getAbsolutePath());
+	}
+	
+	@Benchmark
+	public int unzipFileIntoDirectory() {
+		return Utils.unzipFileIntoDirectory(this.archive.getAbsolutePath(), this.extractDirectory.getAbsolutePath());
+	}
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2014 Laurent CLOUET
+ * Author Laurent CLOUET <laurent.clouet@nopnop.net>
+ *
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.sheepit.client;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Persistent index of the md5 of the cached archives.
+ * An entry is only valid while the size and the modification time of the file are the same,
+ * so a file is hashed again only if it has changed.
+ * It also records when a renderer or a scene was last used by a job, for the eviction of the cache.
+ * The changes are written at most every SAVE_INTERVAL, and on each call of save() (eviction of the cache, stop of the client).
+ */
+public class CacheIndex {
+	public static final String FILENAME = "sheepit_cache.idx";
+	private static final long SAVE_INTERVAL = 5 * 60 * 1000L; // in ms
+	
+	private File file;
+	private Map<String, Entry> entries; // absolute path of the archive -> entry
+	private Map<String, Long> lastUses; // md5 -> last time a job used it
+	private boolean dirty;
+	private long lastSave; // in ms
+	private Log log;
+	
+	private static class Entry {
+		public long size;
+		public long lastModified;
+		public String md5;
+		
+		public Entry(long size_, long last_modified_, String md5_) {
+			this.size = size_;
+			this.lastModified = last_modified_;
+			this.md5 = md5_;
+		}
+	}
+	
+	public CacheIndex(File directory_) {
+		this.file = new File(directory_, FILENAME);
+		this.entries = new HashMap<String, Entry>();
+		this.lastUses = new HashMap<String, Long>();
+		this.dirty = false;
+		this.lastSave = System.currentTimeMillis();
+		this.log = Log.getInstance(null);
+		this.load();
+	}
+	
+	/**
+	 * @return the md5 of the file, it's only computed if the file is not in the index or has changed since
+	 */
+	public String md5(File file_) {
+		String path = file_.getAbsolutePath();
+		long size = file_.length();
+		long last_modified = file_.lastModified();
+		synchronized (this) {
+			Entry entry = this.entries.get(path);
+			if (entry != null && entry.size == size && entry.lastModified == last_modified) {
+				return entry.md5;
+			}
+		}
+		
+		// outside of the lock, an archive of several GB takes a while to hash and the other slots use the index meanwhile
+		String md5 = Utils.md5(path);
+		if (md5.isEmpty() == false) {
+			synchronized (this) {
+				this.entries.put(path, new Entry(size, last_modified, md5));
+				this.dirty = true;
+				this.saveIfDue();
+			}
+		}
+		return md5;
+	}
+	
+	/**
+	 * Record the md5 of a file who was verified by an other way (while downloading it for example)
+	 */
+	public synchronized void put(File file_, String md5_) {
+		this.entries.put(file_.getAbsolutePath(), new Entry(file_.length(), file_.lastModified(), md5_));
+		this.dirty = true;
+		this.saveIfDue();
+	}
+	
+	/**
+	 * Record that a job is using the renderer or the scene
+	 */
+	public synchronized void touch(String md5_) {
+		this.lastUses.put(md5_, System.currentTimeMillis());
+		this.dirty = true;
+		this.saveIfDue();
+	}
+	
+	/**
+	 * @return last time a job used the renderer or the scene, 0 if it's unknown
+	 */
+	public synchronized long getLastUse(String md5_) {
+		Long last_use = this.lastUses.get(md5_);
+		return last_use == null ? 0 : last_use;
+	}
+	
+	public synchronized void forget(String md5_) {
+		if (this.lastUses.remove(md5_) != null) {
+			this.dirty = true;
+		}
+	}
+	
+	/**
+	 * Write the index if the last save is older than SAVE_INTERVAL, a lost change only costs a hash or an older last use
+	 */
+	private void saveIfDue() {
+		if (System.currentTimeMillis() - this.lastSave >= SAVE_INTERVAL) {
+			this.save();
+		}
+	}
+	
+	/**
+	 * Write the index on disk if it has changed, the entries of the removed files are dropped
+	 */
+	public synchronized void save() {
+		this.lastSave = System.currentTimeMillis();
+		Iterator<Map.Entry<String, Entry>> it = this.entries.entrySet().iterator();
+		while (it.hasNext()) {
+			if (new File(it.next().getKey()).exists() == false) {
+				it.remove();
+				this.dirty = true;
+			}
+		}
+		if (this.dirty == false) {
+			return;
+		}
+		
+		File temp = new File(this.file.getAbsolutePath() + ".tmp");
+		PrintWriter out = null;
+		try {
+			out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8));
+			for (Map.Entry<String, Entry> entry : this.entries.entrySet()) {
+				out.println(entry.getValue().md5 + "\t" + entry.getValue().size + "\t" + entry.getValue().lastModified + "\t" + entry.getKey());
+			}
+			for (Map.Entry<String, Long> last_use : this.lastUses.entrySet()) {
+				out.println(last_use.getKey() + "\t" + last_use.getValue());
+			}
+			out.close();
+			boolean write_error = out.checkError(); // PrintWriter does not throw
+			out = null;
+			if (write_error) {
+				throw new IOException("write error on " + temp);
+			}
+			
+			// replace the old index only once the new one is complete
+			Files.move(temp.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			this.dirty = false;
+		}
+		catch (IOException e) {
+			this.log.error("CacheIndex::save failed to write " + this.file + ", the previous index is kept " + e);
+			temp.delete();
+		}
+		finally {
+			if (out != null) {
+				out.close();
+			}
+		}
+	}
+	
+	private void load() {
+		if (this.file.exists() == false) {
+			return;
+		}
+		BufferedReader in = null;
+		try {
+			in = new BufferedReader(new InputStreamReader(new FileInputStream(this.file), StandardCharsets.UTF_8));
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] elements = line.split("\t", 4);
+				try {
+					if (elements.length == 4) {
+						this.entries.put(elements[3], new Entry(Long.parseLong(elements[1]), Long.parseLong(elements[2]), elements[0]));
+					}
+					else if (elements.length == 2) {
+						this.lastUses.put(elements[0], Long.parseLong(elements[1]));
+					}
+				}
+				catch (NumberFormatException e) {
+					// corrupted line, the file will be hashed again
+				}
+			}
+		}
+		catch (IOException e) {
+			this.log.error("CacheIndex::load failed to read " + this.file + " " + e);
+		}
+		finally {
+			if (in != null) {
+				try {
+					in.close();
+				}
+				catch (IOException e) {
+				}
+			}
+		}
+	}
+}
@@ -21,25 +21,32 @@ package com.sheepit.client;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.sheepit.client.Configuration.ComputeType;
 import com.sheepit.client.Error.ServerCode;
 import com.sheepit.client.Error.Type;
+import com.sheepit.client.JobTimings.Phase;
 import com.sheepit.client.exception.FermeException;
 import com.sheepit.client.exception.FermeExceptionNoRightToRender;
 import com.sheepit.client.exception.FermeExceptionNoSession;
@@ -49,29 +56,56 @@ import com.sheepit.client.os.OS;
 public class Client {
 	public static final String UPDATE_METHOD_BY_LINE_NUMBER = "linenumber";
 	public static final String UPDATE_METHOD_BY_REMAINING_TIME = "remainingtime";
+	public static final long ERROR_COOLDOWN = 5 * 60 * 1000L; // in ms
+	public static final int SUMMARY_INTERVAL = 10; // log the timing summary every 10 validated frames
 	
 	private Gui gui;
 	private Server server;
 	private Configuration config;
 	private Log log;
-	private Job renderingJob;
-	private BlockingQueue<Job> jobsToValidate;
-	private boolean isValidatingJob;
+	private List<RenderSlot> slots;
+	private Map<String, Object> fileLocks;
+	private Map<String, Integer> archivesInUse; // md5 -> number of jobs using it
+	private DelayQueue<FrameUpload> jobsToValidate;
+	private AtomicInteger pendingUploads; // frames queued or being sent
+	private AtomicBoolean cacheGrown; // something was added to the cache since the last eviction
+	private ErrorReporter errorReporter;
+	private ValidationJournal validationJournal;
+	private Metrics metrics;
+	private MetricsServer metricsServer;
 	
 	private boolean disableErrorSending;
-	private boolean running;
+	private volatile boolean running;
+	private final Object stateLock; // notified when the upload queue shrinks and when the client is stopped
+	private ScheduledExecutorService scheduler;
 	
 	public Client(Gui gui_, Configuration config, String url_) {
 		this.config = config;
+		this.metrics = new Metrics(); // used by the server
+		this.metricsServer = null;
 		this.server = new Server(url_, this.config, this);
 		this.log = Log.getInstance(this.config);
 		this.gui = gui_;
-		this.renderingJob = null;
-		this.jobsToValidate = new ArrayBlockingQueue<Job>(1024);
-		this.isValidatingJob = false;
+		this.slots = new ArrayList<RenderSlot>();
+		this.fileLocks = new HashMap<String, Object>();
+		this.archivesInUse = new HashMap<String, Integer>();
+		this.jobsToValidate = new DelayQueue<FrameUpload>();
+		this.pendingUploads = new AtomicInteger(0);
+		this.cacheGrown = new AtomicBoolean(true);
+		this.errorReporter = new ErrorReporter(this.server, this.config.getCompressErrorReports());
+		this.validationJournal = new ValidationJournal(this.config.getValidationJournalDir());
 		
 		this.disableErrorSending = false;
 		this.running = true;
+		this.stateLock = new Object();
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "scheduler");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
 	}
 	
 	@Override
@@ -79,8 +113,27 @@ public class Client {
 		return String.format("Client (config %s, server %s)", this.config, this.server);
 	}
 	
+	/**
+	 * @return the job rendered by the first busy slot, or null if nothing is rendering
+	 */
 	public Job getRenderingJob() {
-		return this.renderingJob;
+		for (RenderSlot slot : this.slots) {
+			if (slot.getRenderingJob() != null) {
+				return slot.getRenderingJob();
+			}
+		}
+		return null;
+	}
+	
+	public List<Job> getRenderingJobs() {
+		List<Job> jobs = new ArrayList<Job>();
+		for (RenderSlot slot : this.slots) {
+			Job job = slot.getRenderingJob();
+			if (job != null) {
+				jobs.add(job);
+			}
+		}
+		return jobs;
 	}
 	
 	public Gui getGui() {
@@ -91,6 +144,17 @@ public class Client {
 		return this.config;
 	}
 	
+	public Metrics getMetrics() {
+		return this.metrics;
+	}
+	
+	/**
+	 * @return number of frames waiting to be sent or being sent to the server
+	 */
+	public int getUploadQueueSize() {
+		return this.pendingUploads.get();
+	}
+	
 	public int run() {
 		int step;
 		try {
@@ -98,6 +162,7 @@ public class Client {
 			this.gui.status("Starting");
 			
 			this.config.cleanWorkingDirectory();
+			this.evictCache();
 			
 			Error.Type ret;
 			ret = this.server.getConfiguration();
@@ -110,40 +175,125 @@ public class Client {
 				return -1;
 			}
 			
-			this.server.start(); // for staying alive
+			this.server.scheduleKeepAlive(this.scheduler); // for staying alive
+			this.errorReporter.start();
 			
-			// create a thread who will send the frame
+			if (this.config.getMetricsPort() != -1) {
+				this.metricsServer = new MetricsServer(this, this.log);
+				if (this.metricsServer.start(this.config.getMetricsBind(), this.config.getMetricsPort()) != 0) {
+					this.gui.error("Failed to start the metrics endpoint on " + this.config.getMetricsBind() + ":" + this.config.getMetricsPort());
+					this.metricsServer = null;
+				}
+			}
+			
+			// frames rendered before a restart of the client
+			List<Job> pending_jobs = this.validationJournal.load(this.config);
+			if (pending_jobs.isEmpty() == false) {
+				this.log.debug("Client::run " + pending_jobs.size() + " frames of the previous run will be validated");
+				for (Job job : pending_jobs) {
+					this.queueUpload(job, true);
+				}
+			}
+			
+			// create the threads who will send the frames
 			Runnable runnable_sender = new Runnable() {
 				@Override
 				public void run() {
 					senderLoop();
 				}
 			};
-			Thread thread_sender = new Thread(runnable_sender);
-			thread_sender.start();
+			for (int i = 0; i < this.config.getUploadConnections(); i++) {
+				Thread thread_sender = new Thread(runnable_sender);
+				thread_sender.start();
+			}
+			
+			this.slots = this.createRenderSlots();
+			final int[] slots_ret = new int[this.slots.size()];
+			List<Thread> slot_threads = new ArrayList<Thread>();
+			for (int i = 1; i < this.slots.size(); i++) {
+				final int slot_index = i;
+				Thread thread_slot = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							slots_ret[slot_index] = renderLoop(slots.get(slot_index));
+						}
+						catch (Exception e) {
+							slots_ret[slot_index] = -99;
+						}
+						if (slots_ret[slot_index] != 0) {
+							askForStop();
+						}
+					}
+				});
+				thread_slot.start();
+				slot_threads.add(thread_slot);
+			}
 			
-			this.renderingJob = null;
+			slots_ret[0] = this.renderLoop(this.slots.get(0));
+			if (slots_ret[0] != 0) {
+				this.askForStop();
+			}
+			for (Thread thread_slot : slot_threads) {
+				try {
+					thread_slot.join();
+				}
+				catch (InterruptedException e) {
+				}
+			}
 			
-			while (this.running == true) {
-				step = this.log.newCheckPoint();
+			// not running but maybe still sending frame
+			synchronized (this.stateLock) {
+				while (this.pendingUploads.get() > 0) {
+					try {
+						this.stateLock.wait();
+					}
+					catch (InterruptedException e3) {
+					}
+				}
+			}
+			
+			for (int slot_ret : slots_ret) {
+				if (slot_ret != 0) {
+					return slot_ret;
+				}
+			}
+		}
+		catch (Exception e1) {
+			// no exception should be raise to actual launcher (applet or standalone)
+			return -99; // the this.stop will be done after the return of this.run()
+		}
+		
+		return 0;
+	}
+	
+	/**
+	 * Request, render and queue for upload jobs until the client is stopped
+	 * 
+	 * @return 0 when the client was stopped, an error code otherwise
+	 */
+	protected int renderLoop(RenderSlot slot) {
+		int step;
+		Error.Type ret;
+		slot.setRenderingJob(null);
+		
+		while (this.running == true) {
+			this.waitErrorCooldown(slot);
+			step = this.log.newCheckPoint();
+			Pair<Job, Error.Type> prefetched = this.takePrefetchedJob(slot);
+			if (prefetched != null) {
+				slot.setRenderingJob(prefetched.first);
+			}
+			else {
 				try {
 					Calendar next_request = this.nextJobRequest();
 					if (next_request != null) {
 						// wait
-						Date now = new Date();
 						this.gui.status(String.format("Waiting until %tR before requesting job", next_request));
-						try {
-							Thread.sleep(next_request.getTimeInMillis() - now.getTime());
-						}
-						catch (InterruptedException e3) {
-							
-						}
-						catch (IllegalArgumentException e3) {
-							this.log.error("Client::run sleepA failed " + e3);
-						}
+						this.sleepUntil(next_request.getTimeInMillis());
 					}
 					this.gui.status("Requesting Job");
-					this.renderingJob = this.server.requestJob();
+					slot.setRenderingJob(this.requestJob(slot));
 				}
 				catch (FermeExceptionNoRightToRender e) {
 					this.gui.error("User does not enough right to render scene");
@@ -152,132 +302,116 @@ public class Client {
 				catch (FermeExceptionSessionDisabled e) {
 					this.gui.error(Error.humainString(Error.Type.SESSION_DISABLED));
 					// should wait forever to actually display the message to the user
-					while (true) {
-						try {
-							Thread.sleep(100000);
-						}
-						catch (InterruptedException e1) {
-						}
-					}
+					this.sleepUntil(Long.MAX_VALUE);
+					return 0;
 				}
 				catch (FermeExceptionNoSession e) {
 					// User have no session need to re-authenticate
 					
 					ret = this.server.getConfiguration();
 					if (ret != Error.Type.OK) {
-						this.renderingJob = null;
+						slot.setRenderingJob(null);
 					}
 					else {
 						try {
 							Calendar next_request = this.nextJobRequest();
 							if (next_request != null) {
 								// wait
-								Date now = new Date();
 								this.gui.status(String.format("Waiting until %tR before requesting job", next_request));
-								try {
-									Thread.sleep(next_request.getTimeInMillis() - now.getTime());
-								}
-								catch (InterruptedException e3) {
-									
-								}
-								catch (IllegalArgumentException e3) {
-									this.log.error("Client::run sleepB failed " + e3);
-								}
+								this.sleepUntil(next_request.getTimeInMillis());
 							}
 							this.gui.status("Requesting Job");
-							this.renderingJob = this.server.requestJob();
+							slot.setRenderingJob(this.requestJob(slot));
 						}
 						catch (FermeException e1) {
-							this.renderingJob = null;
+							slot.setRenderingJob(null);
 						}
 					}
 				}
 				catch (FermeException e) {
 					this.gui.error("Client::renderingManagement exception requestJob (1) " + e.getMessage());
+					this.metrics.error(Error.Type.UNKNOWN);
 					this.sendError(step);
+					this.startErrorCooldown(slot, null);
 					continue;
 				}
-				
-				if (this.renderingJob == null) { // no job
-					int time_sleep = 1000 * 60 * 15;
-					Date wakeup_time = new Date(new Date().getTime() + time_sleep);
-					this.gui.status(String.format("No job available. Sleeping for 15 minutes (will wake up at ~%tR)", wakeup_time));
-					this.gui.framesRemaining(0);
-					int time_slept = 0;
-					while (time_slept < time_sleep && this.running == true) {
-						try {
-							Thread.sleep(5000);
-						}
-						catch (InterruptedException e) {
-							return -3;
-						}
-						time_slept += 5000;
-					}
-					continue; // go back to ask job
-				}
-				
-				this.log.debug("Got work to do id: " + this.renderingJob.getId() + " frame: " + this.renderingJob.getFrameNumber());
-				
-				ret = this.work(this.renderingJob);
-				if (ret != Error.Type.OK) {
-					Job frame_to_reset = this.renderingJob; // copie it because the sendError will take ~5min to execute
-					this.renderingJob = null;
-					this.gui.error(Error.humainString(ret));
-					this.sendError(step, frame_to_reset, ret);
-					this.log.removeCheckPoint(step);
-					continue;
-				}
-				
-				if (this.renderingJob.simultaneousUploadIsAllowed() == false) { // power or compute_method job, need to upload right away
-					ret = confirmJob(this.renderingJob);
-					if (ret != Error.Type.OK) {
-						gui.error("Client::renderingManagement problem with confirmJob (returned " + ret + ")");
-						sendError(step);
-					}
-				}
-				else {
-					this.jobsToValidate.add(this.renderingJob);
-					this.renderingJob = null;
-				}
-				
-				while (this.shouldWaitBeforeRender() == true) {
-					try {
-						Thread.sleep(4000); // wait a little bit
-					}
-					catch (InterruptedException e3) {
-					}
+			}
+			
+			if (slot.getRenderingJob() == null) { // no job
+				int time_sleep = 1000 * 60 * 15;
+				Date wakeup_time = new Date(new Date().getTime() + time_sleep);
+				this.gui.status(String.format("No job available. Sleeping for 15 minutes (will wake up at ~%tR)", wakeup_time));
+				this.gui.framesRemaining(0);
+				this.sleepUntil(wakeup_time.getTime());
+				continue; // go back to ask job
+			}
+			
+			this.log.debug("Got work to do id: " + slot.getRenderingJob().getId() + " frame: " + slot.getRenderingJob().getFrameNumber());
+			
+			if (prefetched != null) { // already downloaded and extracted while the previous frame was rendering
+				ret = prefetched.second;
+				if (ret == Error.Type.OK) {
+					ret = this.render(slot, slot.getRenderingJob());
 				}
+			}
+			else {
+				ret = this.work(slot, slot.getRenderingJob());
+			}
+			this.releaseArchives(slot.getRenderingJob());
+			if (ret != Error.Type.OK) {
+				Job frame_to_reset = slot.getRenderingJob();
+				slot.setRenderingJob(null);
+				this.gui.error(Error.humainString(ret));
+				this.metrics.error(ret);
+				this.sendError(step, frame_to_reset, ret);
+				this.startErrorCooldown(slot, ret);
+				this.discardPrefetchedJob(slot, step);
 				this.log.removeCheckPoint(step);
+				continue;
 			}
 			
-			// not running but maybe still sending frame
-			while (this.jobsToValidate.size() > 0) {
-				try {
-					Thread.sleep(2300); // wait a little bit
+			if (slot.getRenderingJob().simultaneousUploadIsAllowed() == false) { // power or compute_method job, need to upload right away
+				ret = confirmJob(slot.getRenderingJob());
+				if (ret != Error.Type.OK) {
+					gui.error("Client::renderingManagement problem with confirmJob (returned " + ret + ")");
+					this.metrics.error(ret);
+					sendError(step);
+					this.startErrorCooldown(slot, ret);
+					this.discardPrefetchedJob(slot, step);
 				}
-				catch (InterruptedException e3) {
+			}
+			else {
+				Job rendered_job = slot.getRenderingJob();
+				boolean journaled = this.validationJournal.add(rendered_job); // it will be sent even if the client is restarted
+				if (journaled == false) {
+					this.log.error("Client::renderLoop failed to record job " + rendered_job.getId() + " frame " + rendered_job.getFrameNumber() + " in the validation journal, it will be sent from " + rendered_job.getOutputImagePath() + " but lost if the client is restarted before");
 				}
+				this.queueUpload(rendered_job, journaled);
+				slot.setRenderingJob(null);
 			}
-		}
-		catch (Exception e1) {
-			// no exception should be raise to actual launcher (applet or standalone)
-			return -99; // the this.stop will be done after the return of this.run()
+			
+			this.waitForUploadSlot();
+			this.log.removeCheckPoint(step);
 		}
 		
+		this.releasePrefetchedJob(slot); // the logout gives it back to the server
 		return 0;
 	}
 	
 	public synchronized int stop() {
 		System.out.println("Client::stop");
 		this.running = false;
+		this.signalStateChange();
 		this.disableErrorSending = true;
 		
-		if (this.renderingJob != null) {
-			if (this.renderingJob.getProcess() != null) {
-				OS.getOS().kill(this.renderingJob.getProcess());
+		for (Job job : this.getRenderingJobs()) {
+			if (job.getProcess() != null) {
+				OS.getOS().kill(job.getProcess());
 			}
 		}
 		
+		this.config.getCacheIndex().save();
+		
 		// 		this.config.workingDirectory.delete();
 		this.config.removeWorkingDirectory();
 		
@@ -291,12 +425,11 @@ public class Client {
 		catch (IOException e) {
 			// nothing to do: if the logout failed that's ok
 		}
-		this.server.interrupt();
-		try {
-			this.server.join();
-		}
-		catch (InterruptedException e) {
+		this.errorReporter.stop();
+		if (this.metricsServer != null) {
+			this.metricsServer.stop();
 		}
+		this.scheduler.shutdownNow();
 		
 		this.server = null;
 		
@@ -307,27 +440,52 @@ public class Client {
 	public void askForStop() {
 		System.out.println("Client::askForStop");
 		this.running = false;
+		this.signalStateChange();
 	}
 	
+	/**
+	 * Upload the frames of the queue, one loop per upload connection.
+	 * A failed upload goes back to the queue with a delay instead of holding the connection, the other frames are sent in the meantime.
+	 */
 	public int senderLoop() {
 		int step = log.newCheckPoint();
 		Error.Type ret;
 		while (true) {
-			Job job_to_send;
+			FrameUpload upload;
 			try {
-				job_to_send = jobsToValidate.take();
-				this.log.debug("will validate " + job_to_send);
-				//gui.status("Sending frame");
-				ret = confirmJob(job_to_send);
-				if (ret != Error.Type.OK) {
-					this.gui.error(Error.humainString(ret));
-					sendError(step);
-				}
-				else {
-					gui.AddFrameRendered();
-				}
+				upload = this.jobsToValidate.take();
 			}
 			catch (InterruptedException e) {
+				continue;
+			}
+			
+			Job job_to_send = upload.getJob();
+			this.log.debug("will validate " + job_to_send + " (attempt " + (upload.getAttempt() + 1) + ")");
+			ret = this.sendFrame(job_to_send, upload.getImagePath());
+			if (ret == Error.Type.NETWORK_ISSUE && upload.canRetry()) {
+				FrameUpload retry = upload.retry();
+				this.log.debug("Client::senderLoop failed to upload " + job_to_send + ", will retry in " + retry.getDelay(TimeUnit.SECONDS) + "s");
+				this.jobsToValidate.add(retry);
+				continue;
+			}
+			
+			if (ret == Error.Type.OK || ret == Error.Type.NETWORK_ISSUE) {
+				this.removeFrame(job_to_send);
+			}
+			this.frameSent(job_to_send, ret, upload.getQueuedTime());
+			if (upload.isJournaled() && ret != Error.Type.SESSION_DISABLED) { // otherwise it will be sent on the next start
+				this.validationJournal.remove(job_to_send);
+			}
+			this.pendingUploads.decrementAndGet();
+			this.signalStateChange();
+			
+			if (ret != Error.Type.OK) {
+				this.gui.error(Error.humainString(ret));
+				this.metrics.error(ret);
+				sendError(step);
+			}
+			else {
+				gui.AddFrameRendered();
 			}
 		}
 	}
@@ -336,52 +494,90 @@ public class Client {
 		this.sendError(step_, null, null);
 	}
 	
+	/**
+	 * Queue the log of the checkpoint to be sent to the server, it does not wait for the upload
+	 */
 	protected void sendError(int step_, Job job_to_reset_, Error.Type error) {
 		if (this.disableErrorSending) {
 			this.log.debug("Error sending is disable, do not send log");
 			return;
 		}
 		
-		try {
-			File temp_file = File.createTempFile("farm_", "");
-			temp_file.createNewFile();
-			temp_file.deleteOnExit();
-			FileOutputStream writer = new FileOutputStream(temp_file);
-			
-			ArrayList<String> logs = this.log.getForCheckPoint(step_);
-			for (String line : logs) {
-				writer.write(line.getBytes());
-				writer.write('\n');
-			}
-			
-			writer.close();
-			String args = "";
-			if (job_to_reset_ != null) {
-				args = "?frame=" + job_to_reset_.getFrameNumber() + "&job=" + job_to_reset_.getId() + "&render_time=" + job_to_reset_.getRenderDuration();
-				if (job_to_reset_.getExtras() != null && job_to_reset_.getExtras().length() > 0) {
-					args += "&extras=" + job_to_reset_.getExtras();
-				}
+		String args = "";
+		if (job_to_reset_ != null) {
+			args = "?frame=" + job_to_reset_.getFrameNumber() + "&job=" + job_to_reset_.getId() + "&render_time=" + job_to_reset_.getRenderDuration();
+			if (job_to_reset_.getExtras() != null && job_to_reset_.getExtras().length() > 0) {
+				args += "&extras=" + job_to_reset_.getExtras();
 			}
-			this.server.HTTPSendFile(this.server.getPage("error") + args, temp_file.getAbsolutePath());
-			temp_file.delete();
 		}
-		catch (Exception e1) {
-			e1.printStackTrace();
-			// no exception should be raise to actual launcher (applet or standalone)
-		}
-		
+		// copy the log now, the checkpoint is usually removed right after
+		this.errorReporter.report(this.server.getPage("error") + args, this.log.getForCheckPoint(step_));
+	}
+	
+	/**
+	 * The slot will wait before requesting a new job, except if only the renderer crashed
+	 */
+	protected void startErrorCooldown(RenderSlot slot, Error.Type error) {
 		if (error != null && error == Error.Type.RENDERER_CRASHED) {
 			// do nothing, we can ask for a job right away
 		}
 		else {
-			try {
-				Thread.sleep(300000); // sleeping for 5min
+			slot.setNextRequestTime(System.currentTimeMillis() + ERROR_COOLDOWN);
+		}
+	}
+	
+	protected void waitErrorCooldown(RenderSlot slot) {
+		if (slot.getNextRequestTime() > System.currentTimeMillis()) {
+			this.gui.status(String.format("Waiting until %tR after an error", new Date(slot.getNextRequestTime())));
+		}
+		this.sleepUntil(slot.getNextRequestTime());
+	}
+	
+	/**
+	 * Wait until the time is reached or the client is stopped
+	 * 
+	 * @param time_ in ms since epoch
+	 * @return false if the client was stopped
+	 */
+	protected boolean sleepUntil(long time_) {
+		synchronized (this.stateLock) {
+			long now = System.currentTimeMillis();
+			while (this.running == true && now < time_) {
+				try {
+					this.stateLock.wait(time_ - now);
+				}
+				catch (InterruptedException e) {
+				}
+				now = System.currentTimeMillis();
 			}
-			catch (InterruptedException e) {
+			return this.running;
+		}
+	}
+	
+	/**
+	 * Wait until a frame of the upload queue is sent if it is full, the senders wake up the render slots as soon as an upload ends
+	 */
+	protected void waitForUploadSlot() {
+		synchronized (this.stateLock) {
+			while (this.running == true && this.shouldWaitBeforeRender() == true) {
+				try {
+					this.stateLock.wait();
+				}
+				catch (InterruptedException e) {
+				}
 			}
 		}
 	}
 	
+	/**
+	 * Wake up the threads waiting for a change of the upload queue or for the stop of the client
+	 */
+	private void signalStateChange() {
+		synchronized (this.stateLock) {
+			this.stateLock.notifyAll();
+		}
+	}
+	
 	/**
 	 * 
 	 * @return the date of the next request, or null is there is not delay (null <=> now)
@@ -423,28 +619,47 @@ public class Client {
 		}
 	}
 	
-	public Error.Type work(Job ajob) {
+	public Error.Type work(RenderSlot slot, Job ajob) {
+		Error.Type err = this.prepareJob(ajob);
+		if (err != Error.Type.OK) {
+			return err;
+		}
+		return this.render(slot, ajob);
+	}
+	
+	/**
+	 * Download and decompress everything needed to render the job
+	 */
+	protected Error.Type prepareJob(Job ajob) {
 		if (ajob.workeable() == false) {
-			this.log.error("Client::work The received job is not workeable");
+			this.log.error("Client::prepareJob The received job is not workeable");
 			return Error.Type.WRONG_CONFIGURATION;
 		}
 		int ret;
 		
-		ret = this.downloadExecutable(ajob);
+		this.useArchives(ajob);
+		
+		synchronized (this.getFileLock(ajob.getRendererArchivePath())) {
+			ret = this.downloadExecutable(ajob);
+		}
 		if (ret != 0) {
-			this.log.error("Client::work problem with downloadExecutable (ret " + ret + ")");
+			this.log.error("Client::prepareJob problem with downloadExecutable (ret " + ret + ")");
 			return Error.Type.DOWNLOAD_FILE;
 		}
 		
-		ret = this.downloadSceneFile(ajob);
+		synchronized (this.getFileLock(ajob.getSceneArchivePath())) {
+			ret = this.downloadSceneFile(ajob);
+		}
 		if (ret != 0) {
-			this.log.error("Client::work problem with downloadSceneFile (ret " + ret + ")");
+			this.log.error("Client::prepareJob problem with downloadSceneFile (ret " + ret + ")");
 			return Error.Type.DOWNLOAD_FILE;
 		}
 		
+		long start = System.nanoTime();
 		ret = this.prepareWorkeableDirectory(ajob); // decompress renderer and scene archives
+		ajob.getTimings().end(Phase.EXTRACTION, start);
 		if (ret != 0) {
-			this.log.error("Client::work problem with this.prepareWorkeableDirectory (ret " + ret + ")");
+			this.log.error("Client::prepareJob problem with this.prepareWorkeableDirectory (ret " + ret + ")");
 			return Error.Type.CAN_NOT_CREATE_DIRECTORY;
 		}
 		
@@ -452,29 +667,281 @@ public class Client {
 		File renderer_file = new File(ajob.getRendererPath());
 		
 		if (scene_file.exists() == false) {
-			this.log.error("Client::work job prepration failed (scene file '" + scene_file.getAbsolutePath() + "' does not exist)");
+			this.log.error("Client::prepareJob job prepration failed (scene file '" + scene_file.getAbsolutePath() + "' does not exist)");
 			return Error.Type.MISSING_SCENE;
 		}
 		
 		if (renderer_file.exists() == false) {
-			this.log.error("Client::work job prepration failed (renderer file '" + renderer_file.getAbsolutePath() + "' does not exist)");
+			this.log.error("Client::prepareJob job prepration failed (renderer file '" + renderer_file.getAbsolutePath() + "' does not exist)");
 			return Error.Type.MISSING_RENDER;
 		}
 		
+		this.evictCache();
+		
+		return Error.Type.OK;
+	}
+	
+	/**
+	 * Render an already prepared job, the next one is prefetched meanwhile if it's enabled
+	 */
+	protected Error.Type render(RenderSlot slot, Job ajob) {
+		this.startPrefetch(slot);
+		
 		Error.Type err = this.runRenderer(ajob);
 		if (err != Error.Type.OK) {
-			this.log.error("Client::work problem with runRenderer (ret " + err + ")");
+			this.log.error("Client::render problem with runRenderer (ret " + err + ")");
 			return err;
 		}
 		
 		return Error.Type.OK;
 	}
 	
+	/**
+	 * Request the next job and download/decompress its archives in the background
+	 */
+	protected void startPrefetch(final RenderSlot slot) {
+		if (this.config.getPrefetchJob() == false || slot.getPrefetcher() != null) {
+			return;
+		}
+		
+		slot.setPrefetchedJob(null);
+		Thread prefetcher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				prefetch(slot);
+			}
+		});
+		slot.setPrefetcher(prefetcher);
+		prefetcher.start();
+	}
+	
+	protected void prefetch(RenderSlot slot) {
+		if (this.running == false || this.nextJobRequest() != null) {
+			// outside of the requesting time, the main loop will handle the wait
+			return;
+		}
+		
+		Job next_job = null;
+		try {
+			next_job = this.requestJob(slot);
+		}
+		catch (FermeException e) {
+			// the main loop will do the request again and handle the error
+			this.log.debug("Client::prefetch failed to request job " + e);
+			return;
+		}
+		
+		if (next_job == null) { // no job
+			return;
+		}
+		
+		this.log.debug("Prefetching job id: " + next_job.getId() + " frame: " + next_job.getFrameNumber());
+		slot.setPrefetchedJob(new Pair<Job, Error.Type>(next_job, this.prepareJob(next_job)));
+	}
+	
+	/**
+	 * Wait for the prefetch to end
+	 * 
+	 * @return the prefetched job and the status of its preparation, or null if there is none
+	 */
+	protected Pair<Job, Error.Type> takePrefetchedJob(RenderSlot slot) {
+		if (slot.getPrefetcher() == null) {
+			return null;
+		}
+		
+		try {
+			slot.getPrefetcher().join();
+		}
+		catch (InterruptedException e) {
+		}
+		slot.setPrefetcher(null);
+		
+		Pair<Job, Error.Type> ret = slot.getPrefetchedJob();
+		slot.setPrefetchedJob(null);
+		return ret;
+	}
+	
+	/**
+	 * Give up the prefetched job of the slot when it has to wait after an error, the frame is reset on the server
+	 * with the log of the error that made the slot give it up.
+	 * 
+	 * @param step_ checkpoint of the caller, it stays the current one of the slot
+	 */
+	protected void discardPrefetchedJob(RenderSlot slot, int step_) {
+		Job job = this.releasePrefetchedJob(slot);
+		if (job != null && this.running) {
+			this.sendError(step_, job, null);
+		}
+	}
+	
+	/**
+	 * Remove the prefetched job of the slot and allow its archives to be evicted again
+	 * 
+	 * @return the job, null if the slot had none
+	 */
+	protected Job releasePrefetchedJob(RenderSlot slot) {
+		Pair<Job, Error.Type> prefetched = this.takePrefetchedJob(slot);
+		if (prefetched == null) {
+			return null;
+		}
+		Job job = prefetched.first;
+		this.log.debug("Client::releasePrefetchedJob job id: " + job.getId() + " frame: " + job.getFrameNumber());
+		this.releaseArchives(job);
+		return job;
+	}
+	
+	/**
+	 * Request a job from the server and bind it to the working directory and the cores of the slot
+	 */
+	protected Job requestJob(RenderSlot slot) throws FermeException {
+		long start = System.nanoTime();
+		Job job = this.server.requestJob(slot.getComputeMethod(), slot.getGPUDevice());
+		if (job != null) {
+			job.getTimings().end(Phase.REQUEST, start);
+			job.setWorkingDirectory(slot.getWorkingDirectory());
+			job.setNbCores(slot.getNbCores());
+			job.setGPUDevice(slot.getGPUDevice());
+		}
+		return job;
+	}
+	
+	protected List<RenderSlot> createRenderSlots() {
+		List<RenderSlot> ret = new ArrayList<RenderSlot>();
+		int nb_slots = this.config.getNbRenderSlots();
+		boolean cpu_and_gpu = this.config.getRenderCPUAndGPU() && this.config.getGPUDevice() != null;
+		if (nb_slots <= 1 && cpu_and_gpu == false) {
+			ret.add(new RenderSlot(0, this.config.getNbCores(), this.config.workingDirectory, this.config.getComputeMethod(), this.config.getGPUDevice()));
+			return ret;
+		}
+		
+		int nb_cores = this.config.getNbCores() > 0 ? this.config.getNbCores() : OS.getOS().getCPU().cores();
+		if (cpu_and_gpu) {
+			// the gpu slot only needs one core to feed the gpu, the others are for the cpu slots
+			ret.add(new RenderSlot(0, 1, this.createSlotDirectory(0), ComputeType.GPU_ONLY, this.config.getGPUDevice()));
+			nb_cores = Math.max(1, nb_cores - 1);
+		}
+		
+		int cores_per_slot = Math.max(1, nb_cores / nb_slots);
+		for (int i = 0; i < nb_slots; i++) {
+			int id = ret.size();
+			// same as the cpu only mode, the server never has cpu only projects
+			ret.add(new RenderSlot(id, cores_per_slot, this.createSlotDirectory(id), ComputeType.CPU_GPU, null));
+		}
+		return ret;
+	}
+	
+	protected File createSlotDirectory(int id) {
+		File slot_directory = new File(this.config.workingDirectory, "slot_" + id);
+		slot_directory.mkdir();
+		return slot_directory;
+	}
+	
+	/**
+	 * Slots can render the same project at the same time, the download and the extraction of an archive have to be done only once
+	 */
+	protected Object getFileLock(String path) {
+		synchronized (this.fileLocks) {
+			Object lock = this.fileLocks.get(path);
+			if (lock == null) {
+				lock = new Object();
+				this.fileLocks.put(path, lock);
+			}
+			return lock;
+		}
+	}
+	
+	/**
+	 * Mark the renderer and the scene of the job as used, they will not be evicted from the cache until releaseArchives is called
+	 */
+	protected void useArchives(Job ajob) {
+		synchronized (this.archivesInUse) {
+			for (String md5 : Arrays.asList(ajob.getRenderMd5(), ajob.getSceneMD5())) {
+				Integer count = this.archivesInUse.get(md5);
+				this.archivesInUse.put(md5, count == null ? 1 : count + 1);
+				this.config.getCacheIndex().touch(md5);
+			}
+		}
+	}
+	
+	protected void releaseArchives(Job ajob) {
+		if (ajob == null || ajob.workeable() == false) { // useArchives was not called
+			return;
+		}
+		synchronized (this.archivesInUse) {
+			for (String md5 : Arrays.asList(ajob.getRenderMd5(), ajob.getSceneMD5())) {
+				Integer count = this.archivesInUse.get(md5);
+				if (count == null || count <= 1) {
+					this.archivesInUse.remove(md5);
+				}
+				else {
+					this.archivesInUse.put(md5, count - 1);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Only walk the cache if something was downloaded or extracted since the last time.
+	 * The archives in use can not change while the files are removed, useArchives waits for it.
+	 */
+	protected void evictCache() {
+		if (this.cacheGrown.getAndSet(false) == false) {
+			return;
+		}
+		this.config.evictCache(this.archivesInUse.keySet(), this.archivesInUse);
+	}
+	
+	/**
+	 * @return listener updating the job and the gui with what the renderer is printing
+	 */
+	protected RenderOutputParser.Listener createRenderOutputListener(final Job ajob) {
+		final boolean update_by_remaining_time = ajob.getUpdateRenderingStatusMethod() == null || ajob.getUpdateRenderingStatusMethod().equals(Client.UPDATE_METHOD_BY_REMAINING_TIME);
+		return new RenderOutputParser.Listener() {
+			private long lastUpdateStatus = 0;
+			
+			@Override
+			public void memoryUsed(long memory_) {
+				if (memory_ > ajob.getMemoryUsed()) {
+					ajob.setMemoryUsed(memory_);
+				}
+			}
+			
+			@Override
+			public void memoryPeak(long memory_) {
+				if (memory_ > ajob.getMemoryUsed()) {
+					ajob.setMemoryUsed(memory_);
+				}
+			}
+			
+			@Override
+			public void remainingTime(int seconds_) {
+				if (update_by_remaining_time && (System.currentTimeMillis() - this.lastUpdateStatus) > 2000) { // only update the gui every two seconds
+					if (seconds_ >= 3600) {
+						gui.status(String.format("Rendering (remaining %02dh%02dmin%02d)", seconds_ / 3600, (seconds_ / 60) % 60, seconds_ % 60));
+					}
+					else {
+						gui.status(String.format("Rendering (remaining %02dmin%02d)", seconds_ / 60, seconds_ % 60));
+					}
+					this.lastUpdateStatus = System.currentTimeMillis();
+				}
+			}
+			
+			@Override
+			public void tile(int current_, int total_) {
+				// the remaining time is enough for the gui
+			}
+			
+			@Override
+			public void sample(int current_, int total_) {
+			}
+		};
+	}
+	
 	protected Error.Type runRenderer(Job ajob) {
 		this.gui.status("Rendering");
 		String core_script = "";
-		if (ajob.getUseGPU() && this.config.getGPUDevice() != null) {
-			core_script += "import bpy\n" + "bpy.context.user_preferences.system.compute_device_type = \"CUDA\"" + "\n" + "bpy.context.scene.cycles.device = \"GPU\"" + "\n" + "bpy.context.user_preferences.system.compute_device = \"" + this.config.getGPUDevice().getCudaName() + "\"\n" + "bpy.context.scene.render.tile_x = 256" + "\n" + "bpy.context.scene.render.tile_y = 256" + "\n";
+		if (ajob.getUseGPU() && ajob.getGPUDevice() != null) {
+			core_script += "import bpy\n" + "bpy.context.user_preferences.system.compute_device_type = \"CUDA\"" + "\n" + "bpy.context.scene.cycles.device = \"GPU\"" + "\n" + "bpy.context.user_preferences.system.compute_device = \"" + ajob.getGPUDevice().getCudaName() + "\"\n" + "bpy.context.scene.render.tile_x = 256" + "\n" + "bpy.context.scene.render.tile_y = 256" + "\n";
 		}
 		else {
 			core_script += "import bpy\n" + "bpy.context.user_preferences.system.compute_device_type = \"NONE\"" + "\n" + "bpy.context.scene.cycles.device = \"CPU\"" + "\n" + "bpy.context.scene.render.tile_x = 32" + "\n" + "bpy.context.scene.render.tile_y = 32" + "\n";
@@ -483,7 +950,7 @@ public class Client {
 		String command1[] = ajob.getRenderCommand().split(" ");
 		int size_command = command1.length + 2; // + 2 for script
 		
-		if (this.config.getNbCores() > 0) { // user have specified something
+		if (ajob.getNbCores() > 0) { // user have specified something
 			size_command += 2;
 		}
 		
@@ -498,12 +965,14 @@ public class Client {
 				index += 1;
 				
 				try {
-					script_file = File.createTempFile("script_", "", this.config.workingDirectory);
+					script_file = File.createTempFile("script_", "", ajob.getWorkingDirectory());
 					File file = new File(script_file.getAbsolutePath());
 					FileWriter txt;
 					txt = new FileWriter(file);
 					
 					PrintWriter out = new PrintWriter(txt);
+					// the crash report of blender is written in its temporary directory, one per slot
+					out.write("import bpy\nbpy.context.user_preferences.filepaths.temporary_directory = \"" + ajob.getWorkingDirectory().getAbsolutePath().replace("\\", "\\\\") + "\"\n");
 					out.write(ajob.getScript());
 					out.write("\n");
 					out.write(core_script); // GPU part
@@ -520,16 +989,16 @@ public class Client {
 			else if (command1[i].equals(".e")) {
 				command[index] = ajob.getRendererPath();
 				// the number of cores have to be put after the binary and before the scene arg
-				if (this.config.getNbCores() > 0) {
+				if (ajob.getNbCores() > 0) {
 					index += 1;
 					command[index] = "-t";
 					index += 1;
-					command[index] = Integer.toString(this.config.getNbCores());
+					command[index] = Integer.toString(ajob.getNbCores());
 					//index += 1; // do not do it, it will be done at the end of the loop 
 				}
 			}
 			else if (command1[i].equals(".o")) {
-				command[index] = this.config.workingDirectory.getAbsolutePath() + File.separator + ajob.getPrefixOutputImage();
+				command[index] = ajob.getWorkingDirectory().getAbsolutePath() + File.separator + ajob.getPrefixOutputImage();
 			}
 			else if (command1[i].equals(".f")) {
 				command[index] = ajob.getFrameNumber();
@@ -541,6 +1010,7 @@ public class Client {
 		}
 		
 		long rending_start = new Date().getTime();
+		long rending_start_ns = System.nanoTime();
 		
 		int nb_lines = 0;
 		try {
@@ -549,17 +1019,19 @@ public class Client {
 			OS os = OS.getOS();
 			ajob.setProcess(os.exec(command));
 			BufferedReader input = new BufferedReader(new InputStreamReader(ajob.getProcess().getInputStream()));
+			RenderOutputParser parser = new RenderOutputParser(this.createRenderOutputListener(ajob));
+			boolean update_by_line_number = ajob.getUpdateRenderingStatusMethod() != null && ajob.getUpdateRenderingStatusMethod().equals(Client.UPDATE_METHOD_BY_LINE_NUMBER) && ajob.getMaxOutputNbLines() > 0;
 			
 			long last_update_status = 0;
 			this.log.debug("renderer output");
 			while ((line = input.readLine()) != null) {
 				nb_lines++;
-				this.updateRenderingMemoryPeak(line, ajob);
+				parser.parse(line);
 				
 				this.log.debug(line);
-				if ((new Date().getTime() - last_update_status) > 2000) { // only call the update every two seconds
-					this.updateRenderingStatus(line, nb_lines, ajob);
-					last_update_status = new Date().getTime();
+				if (update_by_line_number && (System.currentTimeMillis() - last_update_status) > 2000) { // only call the update every two seconds
+					this.gui.status(String.format("Rendering %s %%", (int) (100.0 * nb_lines / ajob.getMaxOutputNbLines())));
+					last_update_status = System.currentTimeMillis();
 				}
 			}
 			input.close();
@@ -572,13 +1044,14 @@ public class Client {
 			return Error.Type.FAILED_TO_EXECUTE;
 		}
 		
-		long rending_end = new Date().getTime();
+		long rending_end_ns = System.nanoTime();
+		ajob.getTimings().add(Phase.RENDER, rending_end_ns - rending_start_ns);
 		
 		if (script_file != null) {
 			script_file.delete();
 		}
 		
-		ajob.setRenderDuration((int) ((rending_end - rending_start) / 1000 + 1)); // render time is in seconds but the getTime is in millisecond
+		ajob.setRenderDuration((int) ((rending_end_ns - rending_start_ns) / 1000000000L + 1)); // render time is in seconds but nanoTime is in nanosecond
 		
 		ajob.setMaxOutputNbLines(nb_lines);
 		int exit_value = 0;
@@ -609,7 +1082,8 @@ public class Client {
 			}
 		};
 		
-		File[] files = this.config.workingDirectory.listFiles(textFilter);
+		File[] files = ajob.getWorkingDirectory().listFiles(textFilter);
+		ajob.getTimings().end(Phase.OUTPUT_DISCOVERY, rending_end_ns);
 		
 		if (files.length == 0) {
 			this.log.error("Client::runRenderer no picture file found (after finished render (namefile_without_extension " + namefile_without_extension + ")");
@@ -621,7 +1095,7 @@ public class Client {
 			catch (Exception e) {
 				e.printStackTrace();
 			}
-			File crash_file = new File(this.config.workingDirectory + File.separator + basename + ".crash.txt");
+			File crash_file = new File(ajob.getWorkingDirectory() + File.separator + basename + ".crash.txt");
 			if (crash_file.exists()) {
 				this.log.error("Client::runRenderer crash file found => the renderer crashed");
 				crash_file.delete();
@@ -646,6 +1120,7 @@ public class Client {
 			scene_dir.delete();
 		}
 		
+		this.metrics.frameRendered(ajob);
 		this.gui.status(String.format("Frame rendered in %dmin%ds", ajob.getRenderDuration() / 60, ajob.getRenderDuration() % 60));
 		
 		return Error.Type.OK;
@@ -658,6 +1133,7 @@ public class Client {
 		
 		File renderer_achive_local_path_file = new File(achive_local_path);
 		
+		this.metrics.cacheLookup(renderer_achive_local_path_file.exists());
 		if (renderer_achive_local_path_file.exists()) {
 			// the archive have been already downloaded
 		}
@@ -666,21 +1142,41 @@ public class Client {
 			int ret;
 			String real_url;
 			real_url = String.format("%s?type=job&job=%s&revision=%s", this.server.getPage("download-archive"), ajob_.getId(), ajob_.getRevision());
-			ret = this.server.HTTPGetFile(real_url, achive_local_path, this.gui, "Downloading scene %s %%");
+			MessageDigest digest = Utils.md5Digest();
+			File scene_directory = new File(ajob_.getSceneDirectory());
+			StreamingUnzip unzip = null;
+			if (this.config.getContentStore() == null) { // the deduplication needs the central directory of the archive
+				unzip = this.startStreamingUnzip(scene_directory);
+			}
+			long start = System.nanoTime();
+			ret = this.server.HTTPGetFile(real_url, achive_local_path, this.gui, "Downloading scene %s %%", digest, unzip);
+			this.cacheGrown.set(true);
+			this.finishStreamingUnzip(unzip, scene_directory, ret == 0);
+			ajob_.getTimings().end(Phase.SCENE_DOWNLOAD, start);
 			if (ret != 0) {
 				this.gui.error("Client::downloadSceneFile problem with Utils.DownloadFile returned " + ret);
 				return -1;
 			}
 			
 			String md5_local;
-			md5_local = Utils.md5(achive_local_path);
+			start = System.nanoTime();
+			if (digest != null) {
+				md5_local = Utils.digestToString(digest);
+			}
+			else {
+				md5_local = Utils.md5(achive_local_path);
+			}
+			ajob_.getTimings().end(Phase.MD5_CHECK, start);
 			
 			if (md5_local.equals(ajob_.getSceneMD5()) == false) {
 				System.err.println("md5 of the downloaded file  and the local file are not the same (local '" + md5_local + "' scene: '" + ajob_.getSceneMD5() + "')");
 				this.log.error("Client::downloadSceneFile mismatch on md5  local: '" + md5_local + "' server: '" + ajob_.getSceneMD5() + "'");
 				// md5 of the file downloaded and the file excepted is not the same
+				renderer_achive_local_path_file.delete(); // otherwise it will never be downloaded again
+				Utils.delete(scene_directory); // extracted from the wrong data
 				return -2;
 			}
+			this.config.getCacheIndex().put(renderer_achive_local_path_file, md5_local);
 		}
 		return 0;
 	}
@@ -693,49 +1189,136 @@ public class Client {
 		// we have the MD5 of the renderer archive
 		String renderer_achive_local_path = ajob.getRendererArchivePath();
 		File renderer_achive_local_path_file = new File(renderer_achive_local_path);
+		File renderer_directory = new File(ajob.getRendererDirectory());
 		
+		if (ajob.getRendererExtractedMarker().exists() && renderer_directory.isDirectory()) {
+			// already extracted (maybe before a restart of the client), the archive is not needed
+			this.metrics.cacheLookup(true);
+			return 0;
+		}
+		
+		String md5_local = null;
+		boolean extracted = false;
+		this.metrics.cacheLookup(renderer_achive_local_path_file.exists());
 		if (renderer_achive_local_path_file.exists()) {
 			// the archive have been already downloaded
 		}
 		else {
 			// we must download the archive
 			int ret;
-			ret = this.server.HTTPGetFile(real_url, renderer_achive_local_path, this.gui, "Downloading renderer %s %%");
+			MessageDigest digest = Utils.md5Digest();
+			long start = System.nanoTime();
+			StreamingUnzip unzip = this.startStreamingUnzip(renderer_directory);
+			ret = this.server.HTTPGetFile(real_url, renderer_achive_local_path, this.gui, "Downloading renderer %s %%", digest, unzip);
+			this.cacheGrown.set(true);
+			extracted = this.finishStreamingUnzip(unzip, renderer_directory, ret == 0);
+			ajob.getTimings().end(Phase.RENDERER_DOWNLOAD, start);
 			if (ret != 0) {
 				this.gui.error("Client::downloadExecutable problem with Utils.DownloadFile returned " + ret);
 				return -9;
 			}
+			if (digest != null) {
+				md5_local = Utils.digestToString(digest);
+				this.config.getCacheIndex().put(renderer_achive_local_path_file, md5_local);
+			}
 		}
 		
-		String md5_local;
-		md5_local = Utils.md5(renderer_achive_local_path);
+		if (md5_local == null) {
+			long start = System.nanoTime();
+			md5_local = this.config.getCacheIndex().md5(renderer_achive_local_path_file);
+			ajob.getTimings().end(Phase.MD5_CHECK, start);
+		}
 		
 		if (md5_local.equals(ajob.getRenderMd5()) == false) {
 			this.log.error("Client::downloadExecutable mismatch on md5  local: '" + md5_local + "' server: '" + ajob.getRenderMd5() + "'");
 			// md5 of the file downloaded and the file excepted is not the same
+			renderer_achive_local_path_file.delete(); // otherwise it will never be downloaded again
+			ajob.getRendererExtractedMarker().delete();
+			Utils.delete(renderer_directory); // might have been extracted from the wrong data
 			return -10;
 		}
+		if (extracted) {
+			this.markRendererExtracted(ajob);
+		}
 		return 0;
 	}
 	
+	/**
+	 * Start to extract the archive in directory_ while it's downloaded
+	 * 
+	 * @return null if the directory already exists, the archive will be extracted after the download if needed
+	 */
+	private StreamingUnzip startStreamingUnzip(File directory_) {
+		if (directory_.exists() || directory_.mkdir() == false) {
+			return null;
+		}
+		try {
+			return new StreamingUnzip(directory_.getAbsolutePath());
+		}
+		catch (IOException e) {
+			this.log.error("Client::startStreamingUnzip exception " + e);
+			Utils.delete(directory_);
+			return null;
+		}
+	}
+	
+	/**
+	 * Wait for the end of the extraction, if the archive was not fully extracted the directory is removed
+	 * so prepareWorkeableDirectory will extract it from the downloaded archive.
+	 * 
+	 * @return true if the whole archive was extracted
+	 */
+	private boolean finishStreamingUnzip(StreamingUnzip unzip_, File directory_, boolean download_ok_) {
+		if (unzip_ == null) {
+			return false;
+		}
+		if (unzip_.finish() != 0 || download_ok_ == false) {
+			if (download_ok_) {
+				this.log.debug("Client::finishStreamingUnzip " + directory_ + " was not extracted while downloading, it will be done from the archive");
+			}
+			Utils.delete(directory_);
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * The renderer directory will be reused as is, even after a restart of the client,
+	 * it must only be called once every entry of the archive was written
+	 */
+	private void markRendererExtracted(Job ajob) {
+		try {
+			ajob.getRendererExtractedMarker().createNewFile();
+		}
+		catch (IOException e) {
+			this.log.error("Client::markRendererExtracted failed to create " + ajob.getRendererExtractedMarker() + " " + e);
+		}
+	}
+	
 	protected int prepareWorkeableDirectory(Job ajob) {
 		int ret;
 		String renderer_archive = ajob.getRendererArchivePath();
 		String renderer_path = ajob.getRendererDirectory();
 		File renderer_path_file = new File(renderer_path);
 		
-		if (renderer_path_file.exists()) {
-			// Directory already exists -> do nothing
-		}
-		else {
-			// we create the directory
-			renderer_path_file.mkdir();
-			
-			// unzip the archive
-			ret = Utils.unzipFileIntoDirectory(renderer_archive, renderer_path);
-			if (ret != 0) {
-				this.gui.error("Client::prepareWorkeableDirectory, error with Utils.unzipFileIntoDirectory of the renderer (returned " + ret + ")");
-				return -1;
+		synchronized (this.getFileLock(renderer_archive)) {
+			if (renderer_path_file.exists() && ajob.getRendererExtractedMarker().exists()) {
+				// Directory already exists -> do nothing
+			}
+			else {
+				// remove what was left by an interrupted extraction and create the directory
+				Utils.delete(renderer_path_file);
+				renderer_path_file.mkdirs();
+				
+				// unzip the archive
+				this.cacheGrown.set(true);
+				ret = Utils.unzipFileIntoDirectory(renderer_archive, renderer_path);
+				if (ret != 0) {
+					this.gui.error("Client::prepareWorkeableDirectory, error with Utils.unzipFileIntoDirectory of the renderer (returned " + ret + ")");
+					Utils.delete(renderer_path_file);
+					return -1;
+				}
+				this.markRendererExtracted(ajob);
 			}
 		}
 		
@@ -743,151 +1326,124 @@ public class Client {
 		String scene_path = ajob.getSceneDirectory();
 		File scene_path_file = new File(scene_path);
 		
-		if (scene_path_file.exists()) {
-			// Directory already exists -> do nothing
-		}
-		else {
-			// we create the directory
-			scene_path_file.mkdir();
-			
-			// unzip the archive
-			ret = Utils.unzipFileIntoDirectory(scene_archive, scene_path);
-			if (ret != 0) {
-				this.gui.error("Client::prepareWorkeableDirectory, error with Utils.unzipFileIntoDirectory of the scene (returned " + ret + ")");
-				return -2;
+		synchronized (this.getFileLock(scene_archive)) {
+			if (scene_path_file.exists()) {
+				// Directory already exists -> do nothing
+			}
+			else {
+				// we create the directory
+				scene_path_file.mkdir();
+				
+				// unzip the archive
+				this.cacheGrown.set(true);
+				ret = Utils.unzipFileIntoDirectory(scene_archive, scene_path, this.config.getContentStore());
+				if (ret != 0) {
+					this.gui.error("Client::prepareWorkeableDirectory, error with Utils.unzipFileIntoDirectory of the scene (returned " + ret + ")");
+					Utils.delete(scene_path_file); // otherwise the partial directory would be used by the next job
+					return -2;
+				}
 			}
 		}
 		
 		return 0;
 	}
 	
+	/**
+	 * Send the frame to the server, retry with a delay growing after each failure
+	 */
 	protected Error.Type confirmJob(Job ajob) {
+		long start = System.nanoTime();
+		FrameUpload upload = new FrameUpload(ajob, false);
+		Error.Type ret = this.sendFrame(ajob, upload.getImagePath());
+		while (ret == Error.Type.NETWORK_ISSUE && upload.canRetry() && this.running) {
+			upload = upload.retry();
+			long delay = upload.getDelay(TimeUnit.MILLISECONDS);
+			this.log.debug("Sleep for " + (delay / 1000) + "s before trying to re-upload the frame");
+			if (this.sleepUntil(System.currentTimeMillis() + delay) == false) {
+				return Error.Type.UNKNOWN;
+			}
+			ret = this.sendFrame(ajob, upload.getImagePath());
+		}
+		
+		if (ret == Error.Type.OK || ret == Error.Type.NETWORK_ISSUE) {
+			this.removeFrame(ajob);
+		}
+		this.frameSent(ajob, ret, start);
+		return ret;
+	}
+	
+	/**
+	 * Do one upload of the frame
+	 * 
+	 * @param image_path_ file of the rendered frame
+	 * @return NETWORK_ISSUE if the upload can be tried again
+	 */
+	protected Error.Type sendFrame(Job ajob, String image_path_) {
 		String extras_config = "";
-		if (this.config.getNbCores() > 0) {
-			extras_config = "&cores=" + this.config.getNbCores();
+		if (ajob.getNbCores() > 0) {
+			extras_config = "&cores=" + ajob.getNbCores();
 		}
 		
 		String url_real = String.format("%s?job=%s&frame=%s&rendertime=%d&revision=%s&memoryused=%s&extras=%s%s", this.server.getPage("validate-job"), ajob.getId(), ajob.getFrameNumber(), ajob.getRenderDuration(), ajob.getRevision(), ajob.getMemoryUsed(), ajob.getExtras(), extras_config);
 		
-		this.isValidatingJob = true;
-		int nb_try = 1;
-		int max_try = 3;
-		ServerCode ret = ServerCode.UNKNOWN;
-		while (nb_try < max_try && ret != ServerCode.OK) {
-			ret = this.server.HTTPSendFile(url_real, ajob.getOutputImagePath());
-			switch (ret) {
-				case OK:
-					// no issue, exit the loop
-					nb_try = max_try;
-					break;
+		long start = System.nanoTime();
+		ServerCode ret = this.server.HTTPSendFile(url_real, image_path_);
+		ajob.getTimings().end(Phase.UPLOAD, start);
+		switch (ret) {
+			case OK:
+				return Error.Type.OK;
 				
-				case JOB_VALIDATION_ERROR_SESSION_DISABLED:
-				case JOB_VALIDATION_ERROR_BROKEN_MACHINE:
-					return Type.SESSION_DISABLED;
-					
-				case JOB_VALIDATION_ERROR_MISSING_PARAMETER:
-					// no point to retry the request
-					return Error.Type.UNKNOWN;
-					
-				default:
-					// do nothing, try to do a request on the next loop
-					break;
-			}
-			
-			nb_try++;
-			if (ret != ServerCode.OK && nb_try < max_try) {
-				try {
-					this.log.debug("Sleep for 32s before trying to re-upload the frame");
-					Thread.sleep(32000);
-				}
-				catch (InterruptedException e) {
-					return Error.Type.UNKNOWN;
-				}
-			}
+			case JOB_VALIDATION_ERROR_SESSION_DISABLED:
+			case JOB_VALIDATION_ERROR_BROKEN_MACHINE:
+				return Error.Type.SESSION_DISABLED;
+				
+			case JOB_VALIDATION_ERROR_MISSING_PARAMETER:
+				// no point to retry the request
+				return Error.Type.UNKNOWN;
+				
+			default:
+				return Error.Type.NETWORK_ISSUE;
 		}
-		this.isValidatingJob = false;
-		
-		// we can remove the frame file
+	}
+	
+	/**
+	 * The frame was sent (or given up), its file can be removed
+	 */
+	private void removeFrame(Job ajob) {
 		File frame = new File(ajob.getOutputImagePath());
 		frame.delete();
 		ajob.setOutputImagePath(null);
-		
-		this.isValidatingJob = false;
-		return Error.Type.OK;
 	}
 	
-	protected boolean shouldWaitBeforeRender() {
-		int concurrent_job = this.jobsToValidate.size();
-		if (this.isValidatingJob) {
-			concurrent_job++;
+	/**
+	 * The upload of the frame is over, the time it waited before (or between) the uploads is counted as validation wait
+	 * 
+	 * @param queued_time_ value of System.nanoTime() when the frame was ready to be sent
+	 */
+	private void frameSent(Job ajob, Error.Type ret, long queued_time_) {
+		JobTimings timings = ajob.getTimings();
+		timings.add(Phase.VALIDATION_WAIT, System.nanoTime() - queued_time_ - timings.get(Phase.UPLOAD));
+		if (ret != Error.Type.OK) {
+			return;
+		}
+		this.metrics.jobValidated(ajob);
+		this.log.debug("Client::frameSent " + ajob.getId() + " frame " + ajob.getFrameNumber() + " " + timings);
+		if (this.metrics.getFramesValidated() % SUMMARY_INTERVAL == 0) {
+			this.log.debug(this.metrics.getSummary());
 		}
-		return (concurrent_job >= this.config.maxUploadingJob());
 	}
 	
-	protected void updateRenderingStatus(String line, int current_number_of_lines, Job ajob) {
-		if (ajob.getUpdateRenderingStatusMethod() != null && ajob.getUpdateRenderingStatusMethod().equals(Client.UPDATE_METHOD_BY_LINE_NUMBER) && ajob.getMaxOutputNbLines() > 0) {
-			this.gui.status(String.format("Rendering %s %%", (int) (100.0 * current_number_of_lines / ajob.getMaxOutputNbLines())));
-		}
-		else if (ajob.getUpdateRenderingStatusMethod() == null || ajob.getUpdateRenderingStatusMethod().equals(Client.UPDATE_METHOD_BY_REMAINING_TIME)) {
-			String search_remaining = "remaining:";
-			int index = line.toLowerCase().indexOf(search_remaining);
-			if (index != -1) {
-				String buf1 = line.substring(index + search_remaining.length());
-				index = buf1.indexOf(" ");
-				
-				if (index != -1) {
-					String remaining_time = buf1.substring(0, index).trim();
-					int last_index = remaining_time.lastIndexOf('.'); //format 00:00:00.00 (hr:min:sec)
-					if (last_index > 0) {
-						remaining_time = remaining_time.substring(0, last_index);
-					}
-					
-					try {
-						DateFormat date_parse_minute = new SimpleDateFormat("m:s");
-						DateFormat date_parse_hour = new SimpleDateFormat("h:m:s");
-						SimpleDateFormat date_output_minute = new SimpleDateFormat("mm'min'ss");
-						SimpleDateFormat date_output_hour = new SimpleDateFormat("HH'h'mm'min'ss");
-						DateFormat date_parse = date_parse_minute;
-						DateFormat date_output = date_output_minute;
-						if (remaining_time.split(":").length > 2) {
-							date_parse = date_parse_hour;
-							date_output = date_output_hour;
-						}
-						Date d1 = date_parse.parse(remaining_time);
-						this.gui.status(String.format("Rendering (remaining %s)", date_output.format(d1)));
-					}
-					catch (ParseException err) {
-						this.log.error("Client::updateRenderingStatus ParseException " + err);
-					}
-				}
-			}
-		}
+	protected boolean shouldWaitBeforeRender() {
+		return (this.pendingUploads.get() >= this.config.maxUploadingJob() * this.slots.size());
 	}
 	
-	protected void updateRenderingMemoryPeak(String line, Job ajob) {
-		String[] elements = line.toLowerCase().split("(peak)");
-		
-		for (String element : elements) {
-			if (element.isEmpty() == false && element.charAt(0) == ' ') {
-				int end = element.indexOf(')');
-				if (end > 0) {
-					long mem = Utils.parseNumber(element.substring(1, end).trim());
-					if (mem > ajob.getMemoryUsed()) {
-						ajob.setMemoryUsed(mem);
-					}
-				}
-			}
-			else {
-				if (element.isEmpty() == false && element.charAt(0) == ':') {
-					int end = element.indexOf('|');
-					if (end > 0) {
-						long mem = Utils.parseNumber(element.substring(1, end).trim());
-						if (mem > ajob.getMemoryUsed()) {
-							ajob.setMemoryUsed(mem);
-						}
-					}
-				}
-			}
-		}
+	/**
+	 * Add a rendered frame to the upload queue
+	 * 
+	 * @param journaled_ false if the frame could not be recorded in the validation journal, it is sent from where it was rendered
+	 */
+	private void queueUpload(Job job_, boolean journaled_) {
+		this.pendingUploads.incrementAndGet();
+		this.jobsToValidate.add(new FrameUpload(job_, journaled_));
 	}
 }
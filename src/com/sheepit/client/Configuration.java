@@ -24,14 +24,25 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import com.sheepit.client.hardware.gpu.GPUDevice;
 
 public class Configuration {
+	public static final String RENDERER_STORE_DIRECTORY = "renderers";
+	public static final String EXTRACTED_MARKER_EXTENSION = ".extracted";
+	public static final String CONTENT_STORE_DIRECTORY = "content";
+	public static final String VALIDATION_JOURNAL_DIRECTORY = "pending";
+	
 	public enum ComputeType {
 		CPU_GPU, CPU_ONLY, GPU_ONLY
 	}; // accept job for ...
@@ -49,6 +60,20 @@ public class Configuration {
 	private boolean printLog;
 	public List<Pair<Calendar, Calendar>> requestTime;
 	private String extras;
+	private boolean prefetchJob;
+	private int nbRenderSlots;
+	private boolean renderCPUAndGPU;
+	private int downloadSegments;
+	private int uploadConnections;
+	private int metricsPort; // -1 <=> disabled
+	private String metricsBind;
+	private CacheIndex cacheIndex;
+	private long maxCacheSize; // in bytes, -1 <=> no limit
+	private boolean dedupSceneFiles;
+	private boolean compressErrorReports;
+	private int logTailSize;
+	private ContentStore contentStore;
+	private final Object evictionLock; // one eviction at a time, without holding the monitor of the configuration during the walk of the cache
 	
 	public Configuration(File cache_dir_, String login_, String password_) {
 		this.login = login_;
@@ -61,10 +86,24 @@ public class Configuration {
 		this.userSpecifiedACacheDir = false;
 		this.workingDirectory = null;
 		this.storageDirectory = null;
+		this.cacheIndex = null;
+		this.maxCacheSize = -1;
+		this.dedupSceneFiles = false;
+		this.compressErrorReports = false;
+		this.logTailSize = Log.DEFAULT_TAIL_SIZE;
+		this.contentStore = null;
+		this.evictionLock = new Object();
 		this.setCacheDir(cache_dir_);
 		this.printLog = false;
 		this.requestTime = null;
 		this.extras = "";
+		this.prefetchJob = false;
+		this.nbRenderSlots = 1;
+		this.renderCPUAndGPU = false;
+		this.downloadSegments = 1;
+		this.uploadConnections = 2;
+		this.metricsPort = -1;
+		this.metricsBind = "127.0.0.1";
 	}
 	
 	@Override
@@ -129,6 +168,7 @@ public class Configuration {
 	
 	public void setCacheDir(File cache_dir_) {
 		removeWorkingDirectory();
+		this.cacheIndex = null;
 		if (cache_dir_ == null) {
 			this.userSpecifiedACacheDir = false;
 			try {
@@ -155,6 +195,7 @@ public class Configuration {
 				dir.mkdir();
 			}
 			this.storageDirectory = dir;
+			this.cacheIndex = null;
 		}
 	}
 	
@@ -167,6 +208,35 @@ public class Configuration {
 		}
 	}
 	
+	/**
+	 * @return directory where the renderers are extracted, one directory per md5.
+	 * It's not removed by cleanWorkingDirectory so a renderer is only extracted once.
+	 */
+	public File getRendererStoreDir() {
+		File dir = new File(this.getStorageDir(), RENDERER_STORE_DIRECTORY);
+		if (dir.exists() == false) {
+			dir.mkdir();
+		}
+		return dir;
+	}
+	
+	/**
+	 * @return directory where the frames waiting to be validated are kept
+	 */
+	public File getValidationJournalDir() {
+		return new File(this.workingDirectory, VALIDATION_JOURNAL_DIRECTORY);
+	}
+	
+	/**
+	 * @return the index of the md5 of the archives, it's stored in the storage directory
+	 */
+	public synchronized CacheIndex getCacheIndex() {
+		if (this.cacheIndex == null) {
+			this.cacheIndex = new CacheIndex(this.getStorageDir());
+		}
+		return this.cacheIndex;
+	}
+	
 	public void setExtras(String str) {
 		this.extras = str;
 	}
@@ -175,9 +245,255 @@ public class Configuration {
 		return this.extras;
 	}
 	
+	public void setPrefetchJob(boolean val) {
+		this.prefetchJob = val;
+	}
+	
+	public boolean getPrefetchJob() {
+		return this.prefetchJob;
+	}
+	
+	public void setNbRenderSlots(int val) {
+		this.nbRenderSlots = val;
+	}
+	
+	public int getNbRenderSlots() {
+		return this.nbRenderSlots;
+	}
+	
+	/**
+	 * Render a gpu job on the GPUDevice and cpu jobs on the remaining cores at the same time
+	 */
+	public void setRenderCPUAndGPU(boolean val) {
+		this.renderCPUAndGPU = val;
+	}
+	
+	public boolean getRenderCPUAndGPU() {
+		return this.renderCPUAndGPU;
+	}
+	
+	/**
+	 * Number of connections used to download a large archive
+	 */
+	public void setDownloadSegments(int val) {
+		this.downloadSegments = val;
+	}
+	
+	public int getDownloadSegments() {
+		return this.downloadSegments;
+	}
+	
+	/**
+	 * Number of frames sent to the server at the same time
+	 */
+	public void setUploadConnections(int val) {
+		this.uploadConnections = val;
+	}
+	
+	public int getUploadConnections() {
+		return this.uploadConnections;
+	}
+	
+	/**
+	 * Port of the local metrics endpoint, -1 to disable it
+	 */
+	public void setMetricsPort(int val) {
+		this.metricsPort = val;
+	}
+	
+	public int getMetricsPort() {
+		return this.metricsPort;
+	}
+	
+	/**
+	 * Address of the interface the metrics endpoint listens on
+	 */
+	public void setMetricsBind(String val) {
+		this.metricsBind = val;
+	}
+	
+	public String getMetricsBind() {
+		return this.metricsBind;
+	}
+	
+	public void setMaxCacheSize(long val) {
+		this.maxCacheSize = val;
+	}
+	
+	public long getMaxCacheSize() {
+		return this.maxCacheSize;
+	}
+	
+	public void setLogTailSize(int val) {
+		this.logTailSize = val;
+	}
+	
+	public int getLogTailSize() {
+		return this.logTailSize;
+	}
+	
+	public void setDedupSceneFiles(boolean val) {
+		this.dedupSceneFiles = val;
+	}
+	
+	public boolean getDedupSceneFiles() {
+		return this.dedupSceneFiles;
+	}
+	
+	/**
+	 * Send the log of the error reports compressed with gzip, only for a server who accepts it
+	 */
+	public void setCompressErrorReports(boolean val) {
+		this.compressErrorReports = val;
+	}
+	
+	public boolean getCompressErrorReports() {
+		return this.compressErrorReports;
+	}
+	
+	/**
+	 * @return store used to deduplicate the files of the scenes, null if it's disabled
+	 */
+	public synchronized ContentStore getContentStore() {
+		if (this.dedupSceneFiles == false) {
+			return null;
+		}
+		if (ContentStore.isSupported() == false) {
+			Log.getInstance(this).error("Configuration::getContentStore the deduplication of the scene files is not supported on this system, it is disabled");
+			this.dedupSceneFiles = false;
+			return null;
+		}
+		if (this.contentStore == null) {
+			this.contentStore = new ContentStore(new File(this.getStorageDir(), CONTENT_STORE_DIRECTORY));
+		}
+		return this.contentStore;
+	}
+	
 	public void cleanWorkingDirectory() {
 		this.cleanDirectory(this.workingDirectory);
 		this.cleanDirectory(this.storageDirectory);
+		this.getCacheIndex().save();
+		this.cleanContentStore();
+	}
+	
+	/**
+	 * Remove the files of the content store who are not used by a scene anymore
+	 */
+	private void cleanContentStore() {
+		ContentStore store = this.getContentStore(); // shared with the extractions, they are not done while it's cleaned
+		File dir = new File(this.getStorageDir(), CONTENT_STORE_DIRECTORY);
+		if (store == null && dir.exists()) {
+			// left by a previous run with the deduplication enabled
+			store = new ContentStore(dir);
+		}
+		if (store != null) {
+			store.clean();
+		}
+	}
+	
+	/**
+	 * Remove the least recently used renderers and scenes (archive and extracted directory) until the cache fit in the max size.
+	 * The size of the cache is computed without any lock, in_use_lock_ is only held while the files are removed.
+	 * 
+	 * @param md5s_in_use renderers and scenes needed by a job, they are never removed
+	 * @param in_use_lock_ lock protecting md5s_in_use, nothing can be marked in use while it's held
+	 */
+	public void evictCache(Set<String> md5s_in_use, Object in_use_lock_) {
+		if (this.maxCacheSize < 0) {
+			return;
+		}
+		
+		synchronized (this.evictionLock) {
+			this.evictCacheItems(md5s_in_use, in_use_lock_);
+		}
+	}
+	
+	private void evictCacheItems(Set<String> md5s_in_use, Object in_use_lock_) {
+		List<File> directories = new LinkedList<File>();
+		directories.add(this.workingDirectory);
+		if (this.storageDirectory != null && this.storageDirectory.equals(this.workingDirectory) == false) {
+			directories.add(this.storageDirectory);
+		}
+		File renderer_store = this.getRendererStoreDir();
+		directories.add(renderer_store);
+		
+		long total_size = 0;
+		final Map<String, List<File>> items = new HashMap<String, List<File>>(); // md5 -> archive and extracted directory
+		final Map<String, Long> last_uses = new HashMap<String, Long>();
+		for (File dir : directories) {
+			File[] files = dir.listFiles();
+			if (files == null) {
+				continue;
+			}
+			for (File file : files) {
+				if (file.equals(renderer_store)) {
+					continue; // its content is counted on its own
+				}
+				if (file.getName().equals(CONTENT_STORE_DIRECTORY) && dir.equals(this.getStorageDir())) {
+					continue; // its files are linked in the scene directories, they are already counted
+				}
+				total_size += Utils.size(file);
+				
+				String md5 = file.getName();
+				if (file.isFile() && md5.indexOf('.') > 0) { // archive, partial download or extraction marker
+					md5 = md5.substring(0, md5.indexOf('.'));
+				}
+				if (md5.matches("[0-9a-fA-F]{32}") == false) {
+					continue; // index, slot directory, ...
+				}
+				
+				List<File> item = items.get(md5);
+				if (item == null) {
+					item = new LinkedList<File>();
+					items.put(md5, item);
+				}
+				item.add(file);
+				
+				long last_use = this.getCacheIndex().getLastUse(md5);
+				if (last_use == 0) { // never used since the index exist
+					last_use = file.lastModified();
+				}
+				Long previous = last_uses.get(md5);
+				last_uses.put(md5, previous == null ? last_use : Math.max(previous, last_use));
+			}
+		}
+		
+		if (total_size <= this.maxCacheSize) {
+			return;
+		}
+		
+		List<String> md5s = new ArrayList<String>(items.keySet());
+		Collections.sort(md5s, new Comparator<String>() {
+			@Override
+			public int compare(String a, String b) {
+				return Long.compare(last_uses.get(a), last_uses.get(b));
+			}
+		});
+		
+		synchronized (in_use_lock_) {
+			for (String md5 : md5s) {
+				if (total_size <= this.maxCacheSize) {
+					break;
+				}
+				if (md5s_in_use.contains(md5)) {
+					continue;
+				}
+				for (File file : items.get(md5)) {
+					long size = Utils.size(file);
+					Utils.delete(file);
+					total_size -= size;
+					Log.getInstance(this).debug("Configuration::evictCache remove " + file.getAbsolutePath() + " (" + size + " bytes)");
+				}
+				this.getCacheIndex().forget(md5);
+			}
+		}
+		
+		this.cleanContentStore();
+		
+		if (total_size > this.maxCacheSize) {
+			Log.getInstance(this).error("Configuration::evictCache cache is still bigger than the max size (" + total_size + " bytes), the files left are used by the current jobs");
+		}
+		this.getCacheIndex().save();
 	}
 	
 	public boolean cleanDirectory(File dir) {
@@ -189,16 +505,28 @@ public class Configuration {
 		if (files != null) {
 			for (int i = 0; i < files.length; i++) {
 				File file = files[i];
-				if (file.isDirectory()) {
+				if (file.isDirectory() && file.getName().equals(RENDERER_STORE_DIRECTORY) && dir.equals(this.getStorageDir())) {
+					this.cleanRendererStore(file);
+				}
+				else if (file.isDirectory() && file.getName().equals(CONTENT_STORE_DIRECTORY) && dir.equals(this.getStorageDir())) {
+					// cleaned once the scene directories are removed
+				}
+				else if (file.isDirectory() && file.getName().equals(VALIDATION_JOURNAL_DIRECTORY) && dir.equals(this.workingDirectory)) {
+					// frames not validated yet, they will be sent by the client
+				}
+				else if (file.isDirectory()) {
 					Utils.delete(file);
 				}
+				else if (file.getName().equals(CacheIndex.FILENAME)) {
+					// keep it, it's what avoid to hash all the archives again
+				}
 				else {
 					try {
 						String extension = file.getName().substring(file.getName().lastIndexOf('.')).toLowerCase();
 						String name = file.getName().substring(0, file.getName().length() - 1 * extension.length());
 						if (extension.equals(".zip")) {
 							// check if the md5 of the file is ok
-							String md5_local = Utils.md5(file.getAbsolutePath());
+							String md5_local = this.getCacheIndex().md5(file);
 							
 							if (md5_local.equals(name) == false) {
 								System.err.println("cleanDirectory find an partial file => remove (" + file.getAbsolutePath() + ")");
@@ -207,6 +535,9 @@ public class Configuration {
 							
 							// TODO: remove old one
 						}
+						else if (extension.equals(Server.PARTIAL_DOWNLOAD_EXTENSION)) {
+							// interrupted download, it will be resumed
+						}
 						else {
 							file.delete();
 						}
@@ -220,6 +551,33 @@ public class Configuration {
 		return true;
 	}
 	
+	/**
+	 * Remove the renderers who were not completely extracted
+	 */
+	private void cleanRendererStore(File dir) {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			if (file.isDirectory()) {
+				if (new File(file.getAbsolutePath() + EXTRACTED_MARKER_EXTENSION).exists() == false) {
+					System.err.println("cleanDirectory find an partially extracted renderer => remove (" + file.getAbsolutePath() + ")");
+					Utils.delete(file);
+				}
+			}
+			else if (file.getName().endsWith(EXTRACTED_MARKER_EXTENSION)) {
+				String name = file.getName().substring(0, file.getName().length() - EXTRACTED_MARKER_EXTENSION.length());
+				if (new File(dir, name).isDirectory() == false) {
+					file.delete();
+				}
+			}
+			else {
+				file.delete();
+			}
+		}
+	}
+	
 	public void removeWorkingDirectory() {
 		if (this.userSpecifiedACacheDir == true) {
 			this.cleanWorkingDirectory();
@@ -246,7 +604,7 @@ public class Configuration {
 					String name = file.getName().substring(0, file.getName().length() - 1 * extension.length());
 					if (extension.equals(".zip")) {
 						// check if the md5 of the file is ok
-						String md5_local = Utils.md5(file.getAbsolutePath());
+						String md5_local = this.getCacheIndex().md5(file);
 						
 						if (md5_local.equals(name)) {
 							files_local.add(file);
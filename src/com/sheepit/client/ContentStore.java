@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2014 Laurent CLOUET
+ * Author Laurent CLOUET <laurent.clouet@nopnop.net>
+ *
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.sheepit.client;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Store of the files extracted from the scenes. A file present in several archives (same texture in every revision of a project)
+ * is only written once in the store and hardlinked in each scene directory.
+ * Layout: <store>/<crc32>_<size>/<sha256>, the crc and the size come from the central directory of the archive
+ * and the sha256 makes sure two files are really the same.
+ * The files of the store are read-only, a link shares its content with every other scene using it.
+ */
+public class ContentStore {
+	private static final long MIN_SIZE = 64 * 1024; // a link is not worth it for small files
+	private static final String TEMP_EXTENSION = ".tmp";
+	
+	private File directory;
+	private volatile boolean linkSupported;
+	private ReadWriteLock lock; // the extractions can run together, but not while the store is cleaned
+	private boolean nbLinksErrorLogged;
+	private Log log;
+	
+	public ContentStore(File directory_) {
+		this.directory = directory_;
+		this.linkSupported = true;
+		this.lock = new ReentrantReadWriteLock();
+		this.nbLinksErrorLogged = false;
+		this.log = Log.getInstance(null);
+	}
+	
+	/**
+	 * The store can only tell which files are still used with the number of links of the unix attributes,
+	 * without it (windows) every file would be removed by each clean and written again by the next scene.
+	 */
+	public static boolean isSupported() {
+		return FileSystems.getDefault().supportedFileAttributeViews().contains("unix");
+	}
+	
+	/**
+	 * Create destination_ as a link to the content of the entry, the content is added to the store if needed
+	 * 
+	 * @return false if the entry was not handled, it has to be extracted normally
+	 */
+	public boolean extract(ZipFile archive_, ZipEntry entry_, File destination_, byte[] buffer_) throws IOException {
+		if (this.linkSupported == false || entry_.getSize() < MIN_SIZE || entry_.getCrc() == -1) {
+			return false;
+		}
+		
+		this.lock.readLock().lock();
+		try {
+			return this.link(archive_, entry_, destination_, buffer_);
+		}
+		finally {
+			this.lock.readLock().unlock();
+		}
+	}
+	
+	private boolean link(ZipFile archive_, ZipEntry entry_, File destination_, byte[] buffer_) throws IOException {
+		File bucket = new File(this.directory, String.format("%08x_%d", entry_.getCrc(), entry_.getSize()));
+		File content = null;
+		if (bucket.isDirectory()) {
+			// the crc and the size are the same, it's very likely the same file so only read it to check
+			String sha256 = this.copy(archive_.getInputStream(entry_), null, buffer_);
+			content = new File(bucket, sha256);
+		}
+		
+		if (content == null || content.exists() == false) {
+			bucket.mkdirs();
+			File temp = File.createTempFile("entry", TEMP_EXTENSION, bucket);
+			try {
+				String sha256 = this.copy(archive_.getInputStream(entry_), temp, buffer_);
+				content = new File(bucket, sha256);
+				try {
+					temp.setExecutable(true);
+				}
+				catch (NoSuchMethodError e2) {
+					// do nothing it's related to the filesystem
+				}
+				temp.setWritable(false, false);
+				if (temp.renameTo(content) == false && content.exists() == false) {
+					throw new IOException("failed to rename " + temp + " to " + content);
+				}
+			}
+			finally {
+				temp.delete(); // if an other thread added the same content at the same time
+			}
+		}
+		
+		try {
+			destination_.delete();
+			Files.createLink(destination_.toPath(), content.toPath());
+		}
+		catch (NoSuchFileException e) {
+			return false;
+		}
+		catch (FileAlreadyExistsException e) {
+			return false;
+		}
+		catch (IOException e) {
+			// only this file can be the problem (too many links, no space left, ...), the feature is disabled
+			// only if a new file can not be linked either, like when the store is not on the same filesystem
+			if (this.canLink(destination_.getParentFile())) {
+				this.log.debug("ContentStore::extract failed to link " + destination_ + " (" + e + ")");
+			}
+			else {
+				this.log.error("ContentStore::extract hardlinks are not supported, files will not be deduplicated (" + e + ")");
+				this.linkSupported = false;
+			}
+			return false;
+		}
+		catch (UnsupportedOperationException e) {
+			this.log.error("ContentStore::extract hardlinks are not supported, files will not be deduplicated (" + e + ")");
+			this.linkSupported = false;
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Remove the files who are not linked in a scene directory anymore, it waits for the extractions in progress
+	 */
+	public void clean() {
+		this.lock.writeLock().lock();
+		try {
+			File[] buckets = this.directory.listFiles();
+			if (buckets == null) {
+				return;
+			}
+			for (File bucket : buckets) {
+				File[] files = bucket.listFiles();
+				if (files == null) {
+					bucket.delete();
+					continue;
+				}
+				for (File file : files) {
+					if (file.getName().endsWith(TEMP_EXTENSION) || this.nbLinks(file) <= 1) {
+						file.setWritable(true, false); // otherwise the file can not be deleted on windows
+						file.delete();
+					}
+					else {
+						file.setWritable(false, false); // a link might have been made writable to be deleted
+					}
+				}
+				bucket.delete(); // only if empty
+			}
+		}
+		finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * @return false if a file of the store can not be linked in directory_
+	 */
+	private boolean canLink(File directory_) {
+		File probe = null;
+		File link = new File(directory_, ".link-probe-" + Thread.currentThread().getId());
+		try {
+			probe = File.createTempFile("probe", TEMP_EXTENSION, this.directory);
+			link.delete();
+			Files.createLink(link.toPath(), probe.toPath());
+			return true;
+		}
+		catch (IOException e) {
+			return probe == null; // the store itself is the problem, not the links
+		}
+		catch (UnsupportedOperationException e) {
+			return false;
+		}
+		finally {
+			link.delete();
+			if (probe != null) {
+				probe.delete();
+			}
+		}
+	}
+	
+	/**
+	 * @return number of hardlinks to the file, 1 if it's not supported by the filesystem
+	 */
+	private int nbLinks(File file_) {
+		try {
+			return (Integer) Files.getAttribute(file_.toPath(), "unix:nlink");
+		}
+		catch (UnsupportedOperationException e) {
+			this.nbLinksFailed(file_, e);
+		}
+		catch (IllegalArgumentException e) {
+			this.nbLinksFailed(file_, e);
+		}
+		catch (IOException e) {
+			this.nbLinksFailed(file_, e);
+		}
+		return 1;
+	}
+	
+	private void nbLinksFailed(File file_, Exception e) {
+		if (this.nbLinksErrorLogged == false) { // once, it would be the same for every file
+			this.nbLinksErrorLogged = true;
+			this.log.error("ContentStore::nbLinks failed to get the number of links of " + file_ + ", the unused files are removed (" + e + ")");
+		}
+	}
+	
+	/**
+	 * Read the whole stream, and write it in destination_ if not null
+	 * 
+	 * @return sha256 of the content
+	 */
+	private String copy(InputStream in_, File destination_, byte[] buffer_) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		
+		OutputStream out = null;
+		try {
+			if (destination_ != null) {
+				out = new FileOutputStream(destination_);
+			}
+			int nb;
+			while ((nb = in_.read(buffer_, 0, buffer_.length)) != -1) {
+				digest.update(buffer_, 0, nb);
+				if (out != null) {
+					out.write(buffer_, 0, nb);
+				}
+			}
+		}
+		finally {
+			in_.close();
+			if (out != null) {
+				out.close();
+			}
+		}
+		return Utils.digestToString(digest);
+	}
+}
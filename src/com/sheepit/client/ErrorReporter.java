@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2014 Laurent CLOUET
+ * Author Laurent CLOUET <laurent.clouet@nopnop.net>
+ *
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.sheepit.client;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPOutputStream;
+
+import com.sheepit.client.Error.ServerCode;
+
+/**
+ * Send the error reports to the server in its own thread, the render and the upload of the frames are never waiting for it.
+ * The upload is retried if it fails. The log is sent as plain text, unless the compression was enabled for a server who accepts gzip.
+ */
+public class ErrorReporter {
+	private static final int QUEUE_SIZE = 32;
+	private static final int MAX_TRY = 5;
+	private static final long FIRST_RETRY_DELAY = 10 * 1000L; // in ms, doubled on each try
+	
+	private Server server;
+	private boolean compress;
+	private Log log;
+	private BlockingQueue<Report> reports;
+	private Thread thread;
+	
+	private static class Report {
+		public String url;
+		public List<String> logs;
+		
+		public Report(String url_, List<String> logs_) {
+			this.url = url_;
+			this.logs = logs_;
+		}
+	}
+	
+	public ErrorReporter(Server server_, boolean compress_) {
+		this.server = server_;
+		this.compress = compress_;
+		this.log = Log.getInstance(null);
+		this.reports = new ArrayBlockingQueue<Report>(QUEUE_SIZE);
+		this.thread = null;
+	}
+	
+	public synchronized void start() {
+		if (this.thread != null) {
+			return;
+		}
+		this.thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						send(reports.take());
+					}
+				}
+				catch (InterruptedException e) {
+					// stopped
+				}
+			}
+		});
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+	
+	public synchronized void stop() {
+		if (this.thread != null) {
+			this.thread.interrupt();
+			this.thread = null;
+		}
+	}
+	
+	/**
+	 * Queue a report, it returns right away
+	 * 
+	 * @param url_ page of the server with the parameters of the error
+	 * @param logs_ log to send, it must not be modified afterward
+	 */
+	public void report(String url_, List<String> logs_) {
+		if (logs_ == null) {
+			return;
+		}
+		while (this.reports.offer(new Report(url_, logs_)) == false) {
+			// the server is not reachable for a long time, the oldest reports are the least useful
+			if (this.reports.poll() != null) {
+				this.log.debug("ErrorReporter::report too many reports waiting, the oldest one is dropped");
+			}
+		}
+	}
+	
+	private void send(Report report_) throws InterruptedException {
+		File file = null;
+		try {
+			file = File.createTempFile("farm_", this.compress ? ".log.gz" : ".log");
+			file.deleteOnExit();
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+			if (this.compress) {
+				out = new GZIPOutputStream(out);
+			}
+			try {
+				for (String line : report_.logs) {
+					out.write(line.getBytes(StandardCharsets.UTF_8));
+					out.write('\n');
+				}
+			}
+			finally {
+				out.close();
+			}
+			
+			long delay = FIRST_RETRY_DELAY;
+			for (int nb_try = 1; nb_try <= MAX_TRY; nb_try++) {
+				ServerCode ret = this.server.HTTPSendFile(report_.url, file.getAbsolutePath(), "error");
+				if (ret == ServerCode.OK) {
+					return;
+				}
+				if (nb_try < MAX_TRY) {
+					this.log.debug("ErrorReporter::send failed (" + ret + "), will retry in " + (delay / 1000) + "s (try " + nb_try + "/" + MAX_TRY + ")");
+					Thread.sleep(delay);
+					delay *= 2;
+				}
+			}
+			this.log.error("ErrorReporter::send failed to send the report after " + MAX_TRY + " tries");
+		}
+		catch (IOException e) {
+			this.log.error("ErrorReporter::send exception " + e);
+		}
+		finally {
+			if (file != null) {
+				file.delete();
+			}
+		}
+	}
+}
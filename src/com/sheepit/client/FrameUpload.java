@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2014 Laurent CLOUET
+ * Author Laurent CLOUET <laurent.clouet@nopnop.net>
+ *
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+
+package com.sheepit.client;
+
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A rendered frame waiting in the upload queue, it becomes available once its retry delay is over
+ */
+public class FrameUpload implements Delayed {
+	public static final int MAX_ATTEMPTS = 6;
+	public static final long BASE_DELAY = 8 * 1000L; // in ms
+	public static final long MAX_DELAY = 5 * 60 * 1000L; // in ms
+	
+	private Job job;
+	private String imagePath; // in the validation journal, or where the renderer wrote it if it could not be recorded
+	private boolean journaled; // false if the frame is lost when the client is restarted
+	private int attempt;
+	private long readyTime; // System.nanoTime() value
+	private long queuedTime; // System.nanoTime() value of the first queuing
+	
+	public FrameUpload(Job job_, boolean journaled_) {
+		this(job_, job_.getOutputImagePath(), journaled_, 0, 0, System.nanoTime());
+	}
+	
+	private FrameUpload(Job job_, String image_path_, boolean journaled_, int attempt_, long delay_, long queued_time_) {
+		this.job = job_;
+		this.imagePath = image_path_;
+		this.journaled = journaled_;
+		this.attempt = attempt_;
+		this.queuedTime = queued_time_;
+		this.readyTime = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay_);
+	}
+	
+	public Job getJob() {
+		return this.job;
+	}
+	
+	public String getImagePath() {
+		return this.imagePath;
+	}
+	
+	public boolean isJournaled() {
+		return this.journaled;
+	}
+	
+	/**
+	 * @return number of failed upload of the frame
+	 */
+	public int getAttempt() {
+		return this.attempt;
+	}
+	
+	/**
+	 * @return value of System.nanoTime() when the frame was added to the queue for the first time
+	 */
+	public long getQueuedTime() {
+		return this.queuedTime;
+	}
+	
+	public boolean canRetry() {
+		return this.attempt + 1 < MAX_ATTEMPTS;
+	}
+	
+	/**
+	 * @return the same frame, available after an exponential delay with jitter so the clients who failed at the same time do not retry at the same time
+	 */
+	public FrameUpload retry() {
+		return new FrameUpload(this.job, this.imagePath, this.journaled, this.attempt + 1, retryDelay(this.attempt), this.queuedTime);
+	}
+	
+	/**
+	 * @return the delay in ms before the retry following the failed attempt number attempt_ (starting at 0)
+	 */
+	public static long retryDelay(int attempt_) {
+		long delay = BASE_DELAY << Math.min(attempt_, 16);
+		if (delay > MAX_DELAY) {
+			delay = MAX_DELAY;
+		}
+		return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+	}
+	
+	@Override
+	public long getDelay(TimeUnit unit) {
+		return unit.convert(this.readyTime - System.nanoTime(), TimeUnit.NANOSECONDS);
+	}
+	
+	@Override
+	public int compareTo(Delayed o) {
+		long diff = this.getDelay(TimeUnit.NANOSECONDS) - o.getDelay(TimeUnit.NANOSECONDS);
+		return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("FrameUpload (job %s, image '%s', journaled %s, attempt %d)", this.job, this.imagePath, this.journaled, this.attempt);
+	}
+}
@@ -21,6 +21,8 @@ package com.sheepit.client;
 
 import java.io.File;
 
+import com.sheepit.client.hardware.gpu.GPUDevice;
+
 public class Job {
 	private String numFrame;
 	private String sceneMD5;
@@ -37,6 +39,11 @@ public class Job {
 	private boolean useGPU;
 	private String extras;
 	private String updateRenderingStatusMethod;
+	private File workingDirectory; // where the script and the output image are written
+	private int nbCores; // -1 <=> use every core
+	private GPUDevice GPUDevice; // device used if the job is a gpu one
+	private JobTimings timings;
+	private volatile long lastKeepAlive; // in ms, last time the server heard about the job
 	
 	private Process process;
 	
@@ -60,8 +67,12 @@ public class Job {
 		script = script_;
 		maxOutputNbLines = 0;
 		updateRenderingStatusMethod = null;
+		workingDirectory = config.workingDirectory;
+		nbCores = config.getNbCores();
+		GPUDevice = config.getGPUDevice();
 		process = null;
-		
+		timings = new JobTimings();
+		lastKeepAlive = System.currentTimeMillis(); // the job was just given by the server
 	}
 	
 	@Override
@@ -125,6 +136,18 @@ public class Job {
 		memoryUsed = val;
 	}
 	
+	public JobTimings getTimings() {
+		return timings;
+	}
+	
+	public long getLastKeepAlive() {
+		return lastKeepAlive;
+	}
+	
+	public void setLastKeepAlive(long val) {
+		lastKeepAlive = val;
+	}
+	
 	public int getRenderDuration() {
 		return renderDuration;
 	}
@@ -157,12 +180,43 @@ public class Job {
 		return pictureFilename;
 	}
 	
+	public File getWorkingDirectory() {
+		return workingDirectory;
+	}
+	
+	public void setWorkingDirectory(File val) {
+		workingDirectory = val;
+	}
+	
+	public int getNbCores() {
+		return nbCores;
+	}
+	
+	public void setNbCores(int val) {
+		nbCores = val;
+	}
+	
+	public GPUDevice getGPUDevice() {
+		return GPUDevice;
+	}
+	
+	public void setGPUDevice(GPUDevice val) {
+		GPUDevice = val;
+	}
+	
 	public String getPrefixOutputImage() {
 		return id + "_";
 	}
 	
 	public String getRendererDirectory() {
-		return config.workingDirectory.getAbsolutePath() + File.separator + rendererMD5;
+		return config.getRendererStoreDir().getAbsolutePath() + File.separator + rendererMD5;
+	}
+	
+	/**
+	 * @return file created once the renderer is completely extracted
+	 */
+	public File getRendererExtractedMarker() {
+		return new File(getRendererDirectory() + Configuration.EXTRACTED_MARKER_EXTENSION);
 	}
 	
 	public String getRendererPath() {
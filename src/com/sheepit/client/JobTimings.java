@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2014 Laurent CLOUET
+ * Author Laurent CLOUET <laurent.clouet@nopnop.net>
+ *
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+
+package com.sheepit.client;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Time spent by a job in each step, from the request to the validation of the frame.
+ * The durations are measured with System.nanoTime() so they are not affected by a change of the system clock.
+ */
+public class JobTimings {
+	public enum Phase {
+		REQUEST("request"),
+		RENDERER_DOWNLOAD("renderer download"),
+		SCENE_DOWNLOAD("scene download"),
+		MD5_CHECK("md5 check"),
+		EXTRACTION("extraction"),
+		RENDER("render"),
+		OUTPUT_DISCOVERY("output discovery"),
+		UPLOAD("upload"),
+		VALIDATION_WAIT("validation wait");
+		
+		private final String label;
+		
+		private Phase(String label_) {
+			this.label = label_;
+		}
+		
+		public String getLabel() {
+			return this.label;
+		}
+	};
+	
+	private AtomicLongArray durations; // in ns, indexed by Phase.ordinal()
+	
+	public JobTimings() {
+		this.durations = new AtomicLongArray(Phase.values().length);
+	}
+	
+	/**
+	 * Add the time elapsed since start_, the same phase can be measured several times (for example each upload try)
+	 * 
+	 * @param start_ value of System.nanoTime() at the beginning of the step
+	 */
+	public void end(Phase phase_, long start_) {
+		this.add(phase_, System.nanoTime() - start_);
+	}
+	
+	public void add(Phase phase_, long duration_) {
+		if (duration_ > 0) {
+			this.durations.addAndGet(phase_.ordinal(), duration_);
+		}
+	}
+	
+	/**
+	 * @return in ns
+	 */
+	public long get(Phase phase_) {
+		return this.durations.get(phase_.ordinal());
+	}
+	
+	/**
+	 * @return in ns
+	 */
+	public long getTotal() {
+		long total = 0;
+		for (int i = 0; i < this.durations.length(); i++) {
+			total += this.durations.get(i);
+		}
+		return total;
+	}
+	
+	@Override
+	public String toString() {
+		StringBuilder str = new StringBuilder("JobTimings (");
+		for (Phase phase : Phase.values()) {
+			if (phase.ordinal() > 0) {
+				str.append(", ");
+			}
+			str.append(String.format("%s %.2fs", phase.getLabel(), this.get(phase) / 1e9));
+		}
+		str.append(")");
+		return str.toString();
+	}
+}
@@ -23,24 +23,112 @@ import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 public class Log {
+	public static final int DEFAULT_TAIL_SIZE = 5000;
+	private static final int HEAD_SIZE = 200; // the beginning of a checkpoint (job, command line, ...) is always kept
+	private static final int PRINT_QUEUE_SIZE = 10000;
+	
 	private static Log instance = null;
 	
-	private Map<Integer, ArrayList<String>> checkpoints = new HashMap<Integer, ArrayList<String>>();;
-	private int lastCheckPoint;
+	private ConcurrentHashMap<Integer, CheckPoint> checkpoints;
+	private volatile int lastCheckPoint;
+	private InheritableThreadLocal<Integer> threadCheckPoint; // every render slot logs in its own checkpoint
+	private int tailSize;
+	
 	private DateFormat dateFormat;
+	private volatile Timestamp lastTimestamp;
 	
 	private boolean printStdOut;
+	private Queue<String> printQueue;
+	private AtomicInteger printQueueSize;
+	private AtomicInteger printDropped;
+	private Thread printer;
 	
-	private Log(boolean print_) {
+	/**
+	 * Lines of a checkpoint, only the first and the last lines are kept so the memory used does not depend on the renderer output
+	 */
+	private static class CheckPoint {
+		private ArrayList<String> head;
+		private String[] tail;
+		private int tailStart;
+		private int tailCount;
+		private long skipped;
+		
+		public CheckPoint(int tail_size_) {
+			this.head = new ArrayList<String>();
+			this.tail = new String[tail_size_];
+			this.tailStart = 0;
+			this.tailCount = 0;
+			this.skipped = 0;
+		}
+		
+		public synchronized void add(String line_) {
+			if (this.head.size() < HEAD_SIZE) {
+				this.head.add(line_);
+			}
+			else if (this.tail.length > 0) {
+				if (this.tailCount == this.tail.length) {
+					this.tail[this.tailStart] = line_;
+					this.tailStart = (this.tailStart + 1) % this.tail.length;
+					this.skipped++;
+				}
+				else {
+					this.tail[(this.tailStart + this.tailCount) % this.tail.length] = line_;
+					this.tailCount++;
+				}
+			}
+			else {
+				this.skipped++;
+			}
+		}
+		
+		public synchronized ArrayList<String> toList() {
+			ArrayList<String> lines = new ArrayList<String>(this.head.size() + this.tailCount + 1);
+			lines.addAll(this.head);
+			if (this.skipped > 0) {
+				lines.add("... " + this.skipped + " lines skipped ...");
+			}
+			for (int i = 0; i < this.tailCount; i++) {
+				lines.add(this.tail[(this.tailStart + i) % this.tail.length]);
+			}
+			return lines;
+		}
+	}
+	
+	private static class Timestamp {
+		public final long second;
+		public final String text;
+		
+		public Timestamp(long second_, String text_) {
+			this.second = second_;
+			this.text = text_;
+		}
+	}
+	
+	private Log(boolean print_, int tail_size_) {
 		this.printStdOut = print_;
+		this.tailSize = tail_size_;
+		this.checkpoints = new ConcurrentHashMap<Integer, CheckPoint>();
 		this.lastCheckPoint = 0;
-		this.checkpoints.put(this.lastCheckPoint, new ArrayList<String>());
+		this.checkpoints.put(this.lastCheckPoint, new CheckPoint(this.tailSize));
+		this.threadCheckPoint = new InheritableThreadLocal<Integer>();
 		this.dateFormat = new SimpleDateFormat("dd-MM kk:mm:ss");
+		this.lastTimestamp = new Timestamp(-1, "");
+		
+		this.printQueue = new ConcurrentLinkedQueue<String>();
+		this.printQueueSize = new AtomicInteger(0);
+		this.printDropped = new AtomicInteger(0);
+		this.printer = null;
+		if (this.printStdOut) {
+			this.startPrinter();
+		}
 	}
 	
 	public void debug(String msg_) {
@@ -57,42 +145,126 @@ public class Log {
 	
 	private void append(String level_, String msg_) {
 		if (msg_.equals("") == false) {
-			String line = this.dateFormat.format(new java.util.Date()) + " (" + level_ + ") " + msg_;
-			if (this.checkpoints.containsKey(this.lastCheckPoint)) {
-				this.checkpoints.get(this.lastCheckPoint).add(line);
+			String line = this.timestamp() + " (" + level_ + ") " + msg_;
+			Integer checkpoint = this.threadCheckPoint.get();
+			if (checkpoint == null) {
+				checkpoint = this.lastCheckPoint;
+			}
+			CheckPoint lines = this.checkpoints.get(checkpoint);
+			if (lines != null) {
+				lines.add(line);
 			}
 			if (this.printStdOut == true) {
+				this.print(line);
+			}
+		}
+	}
+	
+	/**
+	 * @return the current date, it's only formatted once per second
+	 */
+	private String timestamp() {
+		long now = System.currentTimeMillis();
+		Timestamp last = this.lastTimestamp;
+		if (last.second == now / 1000) {
+			return last.text;
+		}
+		synchronized (this.dateFormat) {
+			Timestamp timestamp = new Timestamp(now / 1000, this.dateFormat.format(new Date(now)));
+			this.lastTimestamp = timestamp;
+			return timestamp.text;
+		}
+	}
+	
+	/**
+	 * Give the line to the printer thread, the caller is never blocked by the console.
+	 * If the console is too slow the lines are dropped.
+	 */
+	private void print(String line_) {
+		if (this.printQueueSize.incrementAndGet() > PRINT_QUEUE_SIZE) {
+			this.printQueueSize.decrementAndGet();
+			this.printDropped.incrementAndGet();
+			return;
+		}
+		this.printQueue.offer(line_);
+		LockSupport.unpark(this.printer);
+	}
+	
+	private void startPrinter() {
+		this.printer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (true) {
+					if (flush() == 0) {
+						LockSupport.parkNanos(100 * 1000 * 1000L);
+					}
+				}
+			}
+		});
+		this.printer.setDaemon(true);
+		this.printer.start();
+		
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				flush();
+			}
+		});
+	}
+	
+	/**
+	 * Print the lines waiting in the queue
+	 * 
+	 * @return number of lines printed
+	 */
+	private int flush() {
+		synchronized (this.printQueue) {
+			int nb = 0;
+			String line;
+			while ((line = this.printQueue.poll()) != null) {
+				this.printQueueSize.decrementAndGet();
 				System.out.println(line);
+				nb++;
 			}
+			int dropped = this.printDropped.getAndSet(0);
+			if (dropped > 0) {
+				System.out.println("... " + dropped + " lines not printed ...");
+			}
+			return nb;
 		}
 	}
 	
-	public int newCheckPoint() {
+	public synchronized int newCheckPoint() {
 		int time = (int) (new Date().getTime());
-		this.checkpoints.put(time, new ArrayList<String>());
+		while (this.checkpoints.putIfAbsent(time, new CheckPoint(this.tailSize)) != null) { // two slots can create a checkpoint at the same millisecond
+			time++;
+		}
 		this.lastCheckPoint = time;
+		this.threadCheckPoint.set(time);
 		return this.lastCheckPoint;
 	}
 	
 	public ArrayList<String> getForCheckPoint(int point_) {
-		return this.checkpoints.get(point_);
+		CheckPoint logs = this.checkpoints.get(point_);
+		if (logs == null) {
+			return null;
+		}
+		return logs.toList();
 	}
 	
 	public void removeCheckPoint(int point_) {
-		try {
-			this.checkpoints.remove(point_);
-		}
-		catch (UnsupportedOperationException e) {
-		}
+		this.checkpoints.remove(point_);
 	}
 	
 	public final synchronized static Log getInstance(Configuration config) {
 		if (instance == null) {
 			boolean print = false;
+			int tail_size = DEFAULT_TAIL_SIZE;
 			if (config != null) {
 				print = config.getPrintLog();
+				tail_size = config.getLogTailSize();
 			}
-			instance = new Log(print);
+			instance = new Log(print, tail_size);
 		}
 		return instance;
 	}
@@ -100,6 +272,10 @@ public class Log {
 	public final synchronized static void printCheckPoint(int point_) {
 		Log log = Log.getInstance(null);
 		ArrayList<String> logs = log.getForCheckPoint(point_);
+		if (logs == null) {
+			return;
+		}
+		log.flush(); // keep the order with the printer thread
 		Iterator<String> it = logs.iterator();
 		while (it.hasNext()) {
 			System.out.println(it.next());
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2014 Laurent CLOUET
+ * Author Laurent CLOUET <laurent.clouet@nopnop.net>
+ *
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+
+package com.sheepit.client;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.sheepit.client.JobTimings.Phase;
+
+/**
+ * Statistics of the client, the timings of the last validated frames are kept for a rolling summary
+ */
+public class Metrics {
+	public static final int SUMMARY_SIZE = 100; // number of frames in the rolling summary
+	public static final long[] RENDER_BUCKETS = { 10, 30, 60, 120, 300, 600, 1200, 1800, 3600, 7200 }; // upper bounds in second of the render time histogram
+	
+	private ArrayDeque<JobTimings> lastTimings;
+	private long framesValidated;
+	
+	private AtomicLong framesRendered;
+	private long[] renderBucketCounts; // not cumulative, the last one is +Inf
+	private double renderSecondsSum;
+	private AtomicLong bytesDownloaded;
+	private AtomicLong bytesUploaded;
+	private AtomicLong cacheHits;
+	private AtomicLong cacheMisses;
+	private AtomicLongArray errors; // indexed by Error.Type.ordinal()
+	private volatile long lastMemoryPeak; // in kB
+	private volatile long maxMemoryPeak; // in kB
+	
+	public Metrics() {
+		this.lastTimings = new ArrayDeque<JobTimings>(SUMMARY_SIZE);
+		this.framesValidated = 0;
+		this.framesRendered = new AtomicLong(0);
+		this.renderBucketCounts = new long[RENDER_BUCKETS.length + 1];
+		this.renderSecondsSum = 0;
+		this.bytesDownloaded = new AtomicLong(0);
+		this.bytesUploaded = new AtomicLong(0);
+		this.cacheHits = new AtomicLong(0);
+		this.cacheMisses = new AtomicLong(0);
+		this.errors = new AtomicLongArray(Error.Type.values().length);
+		this.lastMemoryPeak = 0;
+		this.maxMemoryPeak = 0;
+	}
+	
+	/**
+	 * The renderer produced the frame of the job
+	 */
+	public void frameRendered(Job job_) {
+		this.framesRendered.incrementAndGet();
+		double seconds = job_.getTimings().get(Phase.RENDER) / 1e9;
+		synchronized (this.renderBucketCounts) {
+			int i = 0;
+			while (i < RENDER_BUCKETS.length && seconds > RENDER_BUCKETS[i]) {
+				i++;
+			}
+			this.renderBucketCounts[i]++;
+			this.renderSecondsSum += seconds;
+		}
+		this.lastMemoryPeak = job_.getMemoryUsed();
+		if (job_.getMemoryUsed() > this.maxMemoryPeak) {
+			this.maxMemoryPeak = job_.getMemoryUsed();
+		}
+	}
+	
+	public void addBytesDownloaded(long bytes_) {
+		this.bytesDownloaded.addAndGet(bytes_);
+	}
+	
+	public void addBytesUploaded(long bytes_) {
+		this.bytesUploaded.addAndGet(bytes_);
+	}
+	
+	/**
+	 * @param hit_ true if the archive was already in the cache
+	 */
+	public void cacheLookup(boolean hit_) {
+		if (hit_) {
+			this.cacheHits.incrementAndGet();
+		}
+		else {
+			this.cacheMisses.incrementAndGet();
+		}
+	}
+	
+	public void error(Error.Type error_) {
+		if (error_ != null) {
+			this.errors.incrementAndGet(error_.ordinal());
+		}
+	}
+	
+	/**
+	 * The frame of the job was sent to the server, its timings are complete
+	 */
+	public synchronized void jobValidated(Job job_) {
+		if (this.lastTimings.size() == SUMMARY_SIZE) {
+			this.lastTimings.removeFirst();
+		}
+		this.lastTimings.addLast(job_.getTimings());
+		this.framesValidated++;
+	}
+	
+	public synchronized long getFramesValidated() {
+		return this.framesValidated;
+	}
+	
+	/**
+	 * @return the timings of the last validated frames, the oldest first
+	 */
+	public synchronized List<JobTimings> getLastTimings() {
+		return new ArrayList<JobTimings>(this.lastTimings);
+	}
+	
+	/**
+	 * @return average duration in ns of the phase on the last validated frames, 0 if there is none
+	 */
+	public synchronized long getAverage(Phase phase_) {
+		if (this.lastTimings.isEmpty()) {
+			return 0;
+		}
+		long total = 0;
+		for (JobTimings timings : this.lastTimings) {
+			total += timings.get(phase_);
+		}
+		return total / this.lastTimings.size();
+	}
+	
+	/**
+	 * @return average, min and max of each phase on the last validated frames
+	 */
+	public synchronized String getSummary() {
+		StringBuilder str = new StringBuilder(String.format("Metrics (%d frames validated, last %d:", this.framesValidated, this.lastTimings.size()));
+		for (Phase phase : Phase.values()) {
+			long min = Long.MAX_VALUE;
+			long max = 0;
+			for (JobTimings timings : this.lastTimings) {
+				min = Math.min(min, timings.get(phase));
+				max = Math.max(max, timings.get(phase));
+			}
+			if (this.lastTimings.isEmpty()) {
+				min = 0;
+			}
+			str.append(String.format(" %s avg %.2fs min %.2fs max %.2fs,", phase.getLabel(), this.getAverage(phase) / 1e9, min / 1e9, max / 1e9));
+		}
+		str.setCharAt(str.length() - 1, ')');
+		return str.toString();
+	}
+	
+	/**
+	 * Append the metrics in the Prometheus text exposition format
+	 * 
+	 * @param upload_queue_size_ number of frames waiting to be sent to the server
+	 */
+	public void writePrometheus(StringBuilder out_, int upload_queue_size_) {
+		writeMetric(out_, "sheepit_frames_rendered_total", "counter", "Frames rendered", this.framesRendered.get());
+		synchronized (this) {
+			writeMetric(out_, "sheepit_frames_validated_total", "counter", "Frames sent to the server", this.framesValidated);
+		}
+		
+		out_.append("# HELP sheepit_render_seconds Render time of the frames\n");
+		out_.append("# TYPE sheepit_render_seconds histogram\n");
+		synchronized (this.renderBucketCounts) {
+			long cumulative = 0;
+			for (int i = 0; i < RENDER_BUCKETS.length; i++) {
+				cumulative += this.renderBucketCounts[i];
+				out_.append("sheepit_render_seconds_bucket{le=\"").append(RENDER_BUCKETS[i]).append("\"} ").append(cumulative).append('\n');
+			}
+			cumulative += this.renderBucketCounts[RENDER_BUCKETS.length];
+			out_.append("sheepit_render_seconds_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+			out_.append("sheepit_render_seconds_sum ").append(this.renderSecondsSum).append('\n');
+			out_.append("sheepit_render_seconds_count ").append(cumulative).append('\n');
+		}
+		
+		writeMetric(out_, "sheepit_downloaded_bytes_total", "counter", "Bytes downloaded from the server", this.bytesDownloaded.get());
+		writeMetric(out_, "sheepit_uploaded_bytes_total", "counter", "Bytes of frame sent to the server", this.bytesUploaded.get());
+		writeMetric(out_, "sheepit_cache_hits_total", "counter", "Archives found in the cache", this.cacheHits.get());
+		writeMetric(out_, "sheepit_cache_misses_total", "counter", "Archives downloaded", this.cacheMisses.get());
+		writeMetric(out_, "sheepit_upload_queue_frames", "gauge", "Frames waiting to be sent to the server", upload_queue_size_);
+		writeMetric(out_, "sheepit_renderer_memory_peak_bytes", "gauge", "Peak memory of the renderer on the last frame", this.lastMemoryPeak * 1000);
+		writeMetric(out_, "sheepit_renderer_memory_peak_max_bytes", "gauge", "Highest peak memory of the renderer", this.maxMemoryPeak * 1000);
+		
+		out_.append("# HELP sheepit_errors_total Errors by type\n");
+		out_.append("# TYPE sheepit_errors_total counter\n");
+		for (Error.Type type : Error.Type.values()) {
+			if (type != Error.Type.OK) {
+				out_.append("sheepit_errors_total{type=\"").append(type.name()).append("\"} ").append(this.errors.get(type.ordinal())).append('\n');
+			}
+		}
+		
+		out_.append("# HELP sheepit_phase_seconds_avg Average time of each phase on the last validated frames\n");
+		out_.append("# TYPE sheepit_phase_seconds_avg gauge\n");
+		for (Phase phase : Phase.values()) {
+			out_.append("sheepit_phase_seconds_avg{phase=\"").append(phase.name().toLowerCase()).append("\"} ").append(this.getAverage(phase) / 1e9).append('\n');
+		}
+	}
+	
+	private static void writeMetric(StringBuilder out_, String name_, String type_, String help_, long value_) {
+		out_.append("# HELP ").append(name_).append(' ').append(help_).append('\n');
+		out_.append("# TYPE ").append(name_).append(' ').append(type_).append('\n');
+		out_.append(name_).append(' ').append(value_).append('\n');
+	}
+}
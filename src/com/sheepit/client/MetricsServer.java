@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2014 Laurent CLOUET
+ * Author Laurent CLOUET <laurent.clouet@nopnop.net>
+ *
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+
+package com.sheepit.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local HTTP endpoint exposing the metrics of the client in the Prometheus text format on /metrics
+ */
+public class MetricsServer implements HttpHandler {
+	public static final String PATH = "/metrics";
+	
+	private Client client;
+	private Log log;
+	private HttpServer httpServer;
+	
+	public MetricsServer(Client client_, Log log_) {
+		this.client = client_;
+		this.log = log_;
+		this.httpServer = null;
+	}
+	
+	/**
+	 * @return 0 if the server is listening
+	 */
+	public int start(String bind_, int port_) {
+		try {
+			this.httpServer = HttpServer.create(new InetSocketAddress(bind_, port_), 0);
+		}
+		catch (IOException e) {
+			this.log.error("MetricsServer::start failed to listen on " + bind_ + ":" + port_ + " " + e);
+			return -1;
+		}
+		this.httpServer.createContext(PATH, this);
+		this.httpServer.start(); // the requests are handled by the dispatcher thread, they are small and rare
+		this.log.debug("MetricsServer::start listening on " + this.httpServer.getAddress() + PATH);
+		return 0;
+	}
+	
+	public void stop() {
+		if (this.httpServer != null) {
+			this.httpServer.stop(0);
+			this.httpServer = null;
+		}
+	}
+	
+	@Override
+	public void handle(HttpExchange exchange_) throws IOException {
+		try {
+			if ("GET".equals(exchange_.getRequestMethod()) == false) {
+				exchange_.sendResponseHeaders(405, -1);
+				return;
+			}
+			StringBuilder text = new StringBuilder(4096);
+			this.client.getMetrics().writePrometheus(text, this.client.getUploadQueueSize());
+			byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+			exchange_.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+			exchange_.sendResponseHeaders(200, body.length);
+			OutputStream out = exchange_.getResponseBody();
+			out.write(body);
+			out.close();
+		}
+		finally {
+			exchange_.close();
+		}
+	}
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2014 Laurent CLOUET
+ * Author Laurent CLOUET <laurent.clouet@nopnop.net>
+ *
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.sheepit.client;
+
+/**
+ * Parser of the output of the renderer, a line is scanned in place (no regex, no substring)
+ * and the values found are sent to the listener.
+ * 
+ * Line examples:
+ * Fra:1 Mem:35.81M (0.00M, Peak 36.12M) | Time:00:00.52 | Remaining:00:05.12 | Mem:3.11M, Peak:3.11M | Scene, RenderLayer | Path Tracing Tile 1/135
+ * Fra:1 Mem:35.81M (0.00M, Peak 36.12M) | Time:00:10.16 | Mem:3.11M, Peak:3.11M | Scene, RenderLayer | Rendered 12/135 Tiles, Sample 16/16
+ */
+public class RenderOutputParser {
+	public interface Listener {
+		/**
+		 * @param memory_ in kB
+		 */
+		public void memoryUsed(long memory_);
+		
+		/**
+		 * @param memory_ in kB
+		 */
+		public void memoryPeak(long memory_);
+		
+		public void remainingTime(int seconds_);
+		
+		public void tile(int current_, int total_);
+		
+		public void sample(int current_, int total_);
+	}
+	
+	private Listener listener;
+	
+	// result of the last parse* call, to not allocate an object for it
+	private long value;
+	private long value2;
+	private int end;
+	
+	public RenderOutputParser(Listener listener_) {
+		this.listener = listener_;
+	}
+	
+	public void parse(CharSequence line_) {
+		int length = line_.length();
+		int i = 0;
+		while (i < length) {
+			char c = Character.toLowerCase(line_.charAt(i));
+			if (c == 'p' && this.startsWith(line_, i, "peak")) {
+				int start = i + "peak".length();
+				if (start < length && (line_.charAt(start) == ' ' || line_.charAt(start) == ':') && this.parseMemory(line_, start + 1)) {
+					this.listener.memoryPeak(this.value);
+					i = this.end;
+					continue;
+				}
+			}
+			else if (c == 'm' && this.startsWith(line_, i, "mem:")) {
+				if (this.parseMemory(line_, i + "mem:".length())) {
+					this.listener.memoryUsed(this.value);
+					i = this.end;
+					continue;
+				}
+			}
+			else if (c == 'r' && this.startsWith(line_, i, "remaining:")) {
+				if (this.parseTime(line_, i + "remaining:".length())) {
+					this.listener.remainingTime((int) this.value);
+					i = this.end;
+					continue;
+				}
+			}
+			else if (c == 'r' && this.startsWith(line_, i, "rendered ")) {
+				// Rendered 12/135 Tiles
+				if (this.parseFraction(line_, i + "rendered ".length()) && this.startsWith(line_, this.end, " tile")) {
+					this.listener.tile((int) this.value, (int) this.value2);
+					i = this.end;
+					continue;
+				}
+			}
+			else if (c == 't' && this.startsWith(line_, i, "tile ")) {
+				if (this.parseFraction(line_, i + "tile ".length())) {
+					this.listener.tile((int) this.value, (int) this.value2);
+					i = this.end;
+					continue;
+				}
+			}
+			else if (c == 's' && this.startsWith(line_, i, "sample ")) {
+				if (this.parseFraction(line_, i + "sample ".length())) {
+					this.listener.sample((int) this.value, (int) this.value2);
+					i = this.end;
+					continue;
+				}
+			}
+			i++;
+		}
+	}
+	
+	/**
+	 * @param token_ in lower case
+	 */
+	private boolean startsWith(CharSequence line_, int offset_, String token_) {
+		if (offset_ + token_.length() > line_.length()) {
+			return false;
+		}
+		for (int i = 0; i < token_.length(); i++) {
+			if (Character.toLowerCase(line_.charAt(offset_ + i)) != token_.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Parse a memory size like "36.12M", the value is in kB
+	 */
+	private boolean parseMemory(CharSequence line_, int offset_) {
+		int length = line_.length();
+		int i = offset_;
+		while (i < length && line_.charAt(i) == ' ') {
+			i++;
+		}
+		long integer_part = 0;
+		long decimal_part = 0;
+		long decimal_divisor = 1;
+		boolean decimal = false;
+		int start = i;
+		for (; i < length; i++) {
+			char c = line_.charAt(i);
+			if (c >= '0' && c <= '9') {
+				if (decimal) {
+					if (decimal_divisor < 1000000) { // more precision is useless
+						decimal_part = decimal_part * 10 + (c - '0');
+						decimal_divisor *= 10;
+					}
+				}
+				else {
+					integer_part = integer_part * 10 + (c - '0');
+				}
+			}
+			else if ((c == '.' || c == ',') && decimal == false) {
+				decimal = true;
+			}
+			else {
+				break;
+			}
+		}
+		if (i == start) {
+			return false;
+		}
+		
+		long scale = 1;
+		if (i < length) {
+			switch (line_.charAt(i)) {
+				case 'G':
+				case 'g':
+					scale = 1000 * 1000;
+					i++;
+					break;
+				case 'M':
+				case 'm':
+					scale = 1000;
+					i++;
+					break;
+				case 'K':
+				case 'k':
+					i++;
+					break;
+			}
+		}
+		this.value = integer_part * scale + decimal_part * scale / decimal_divisor;
+		this.end = i;
+		return true;
+	}
+	
+	/**
+	 * Parse a duration like "00:05.12" or "01:02:05.12", the value is in seconds
+	 */
+	private boolean parseTime(CharSequence line_, int offset_) {
+		int length = line_.length();
+		int i = offset_;
+		while (i < length && line_.charAt(i) == ' ') {
+			i++;
+		}
+		long seconds = 0;
+		long field = 0;
+		int nb_digits = 0;
+		for (; i < length; i++) {
+			char c = line_.charAt(i);
+			if (c >= '0' && c <= '9') {
+				field = field * 10 + (c - '0');
+				nb_digits++;
+			}
+			else if (c == ':' && nb_digits > 0) {
+				seconds = (seconds + field) * 60;
+				field = 0;
+				nb_digits = 0;
+			}
+			else {
+				break;
+			}
+		}
+		if (nb_digits == 0) {
+			return false;
+		}
+		seconds += field;
+		
+		// skip the hundredths of second
+		if (i < length && line_.charAt(i) == '.') {
+			i++;
+			while (i < length && line_.charAt(i) >= '0' && line_.charAt(i) <= '9') {
+				i++;
+			}
+		}
+		this.value = seconds;
+		this.end = i;
+		return true;
+	}
+	
+	/**
+	 * Parse "12/135"
+	 */
+	private boolean parseFraction(CharSequence line_, int offset_) {
+		int length = line_.length();
+		int i = offset_;
+		long numerator = 0;
+		long denominator = 0;
+		int start = i;
+		while (i < length && line_.charAt(i) >= '0' && line_.charAt(i) <= '9') {
+			numerator = numerator * 10 + (line_.charAt(i) - '0');
+			i++;
+		}
+		if (i == start || i >= length || line_.charAt(i) != '/') {
+			return false;
+		}
+		i++;
+		start = i;
+		while (i < length && line_.charAt(i) >= '0' && line_.charAt(i) <= '9') {
+			denominator = denominator * 10 + (line_.charAt(i) - '0');
+			i++;
+		}
+		if (i == start) {
+			return false;
+		}
+		this.value = numerator;
+		this.value2 = denominator;
+		this.end = i;
+		return true;
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2014 Laurent CLOUET
+ * Author Laurent CLOUET <laurent.clouet@nopnop.net>
+ *
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.sheepit.client;
+
+import java.io.File;
+
+import com.sheepit.client.Configuration.ComputeType;
+import com.sheepit.client.hardware.gpu.GPUDevice;
+
+/**
+ * A renderer process running its own jobs with a share of the cores of the machine
+ */
+public class RenderSlot {
+	private int id;
+	private int nbCores; // -1 <=> not set, the renderer will use every core
+	private File workingDirectory; // where the script and the output image are written
+	private ComputeType computeMethod; // what kind of job the slot request
+	private GPUDevice GPUDevice; // null <=> render on the cpu
+	private volatile Job renderingJob;
+	private Thread prefetcher;
+	private Pair<Job, Error.Type> prefetchedJob;
+	private long nextRequestTime; // in ms, after an error the slot waits before requesting a new job
+	
+	public RenderSlot(int id_, int nb_cores_, File working_directory_, ComputeType compute_method_, GPUDevice gpu_) {
+		this.id = id_;
+		this.nbCores = nb_cores_;
+		this.workingDirectory = working_directory_;
+		this.computeMethod = compute_method_;
+		this.GPUDevice = gpu_;
+		this.renderingJob = null;
+		this.prefetcher = null;
+		this.prefetchedJob = null;
+		this.nextRequestTime = 0;
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("RenderSlot (id %d, nbCores %d, workingDirectory '%s', computeMethod %s, GPUDevice %s, renderingJob %s)", this.id, this.nbCores, this.workingDirectory, this.computeMethod, this.GPUDevice, this.renderingJob);
+	}
+	
+	public int getId() {
+		return this.id;
+	}
+	
+	public int getNbCores() {
+		return this.nbCores;
+	}
+	
+	public File getWorkingDirectory() {
+		return this.workingDirectory;
+	}
+	
+	public ComputeType getComputeMethod() {
+		return this.computeMethod;
+	}
+	
+	public GPUDevice getGPUDevice() {
+		return this.GPUDevice;
+	}
+	
+	public Job getRenderingJob() {
+		return this.renderingJob;
+	}
+	
+	public void setRenderingJob(Job job) {
+		this.renderingJob = job;
+	}
+	
+	public Thread getPrefetcher() {
+		return this.prefetcher;
+	}
+	
+	public void setPrefetcher(Thread thread) {
+		this.prefetcher = thread;
+	}
+	
+	public Pair<Job, Error.Type> getPrefetchedJob() {
+		return this.prefetchedJob;
+	}
+	
+	public void setPrefetchedJob(Pair<Job, Error.Type> job) {
+		this.prefetchedJob = job;
+	}
+	
+	public long getNextRequestTime() {
+		return this.nextRequestTime;
+	}
+	
+	public void setNextRequestTime(long time) {
+		this.nextRequestTime = time;
+	}
+}
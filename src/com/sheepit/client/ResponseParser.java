@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2014 Laurent CLOUET
+ * Author Laurent CLOUET <laurent.clouet@nopnop.net>
+ *
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+
+package com.sheepit.client;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.sheepit.client.Error.ServerCode;
+
+/**
+ * Decode the xml answers of the server with a pull parser, without building a DOM.
+ * The factory is created once per thread, XMLInputFactory.newInstance() does a service lookup on every call.
+ */
+public class ResponseParser {
+	private static final ThreadLocal<XMLInputFactory> factory = new ThreadLocal<XMLInputFactory>() {
+		@Override
+		protected XMLInputFactory initialValue() {
+			XMLInputFactory factory = XMLInputFactory.newInstance();
+			factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+			factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+			factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+			return factory;
+		}
+	};
+	
+	/**
+	 * Answer who only contains a status, like <keepmealive status="0" />
+	 */
+	public static class StatusResponse {
+		protected ServerCode status;
+		
+		public ServerCode getStatus() {
+			return this.status;
+		}
+	}
+	
+	/**
+	 * Answer of the config request
+	 */
+	public static class ConfigResponse extends StatusResponse {
+		private Map<String, String> pages; // request type -> path
+		private int maxPeriod; // of the keepmealive request in second, -1 if not given
+		
+		public ConfigResponse() {
+			this.pages = new HashMap<String, String>();
+			this.maxPeriod = -1;
+		}
+		
+		public Map<String, String> getPages() {
+			return this.pages;
+		}
+		
+		public int getMaxPeriod() {
+			return this.maxPeriod;
+		}
+	}
+	
+	/**
+	 * Answer of the request-job request, the values are null if they are not in the answer
+	 */
+	public static class JobRequestResponse extends StatusResponse {
+		private int remainingFrames; // -1 if not given
+		private boolean hasFrames;
+		private boolean hasJob;
+		private boolean hasRenderer;
+		private String id;
+		private String frame;
+		private String revision;
+		private String path;
+		private String archiveMD5;
+		private String useGPU;
+		private String extras;
+		private String rendererMD5;
+		private String commandLine;
+		private String script;
+		private List<String> filesToDelete; // md5 of the archives the client should remove
+		
+		public JobRequestResponse() {
+			this.remainingFrames = -1;
+			this.hasFrames = false;
+			this.hasJob = false;
+			this.hasRenderer = false;
+			this.filesToDelete = new ArrayList<String>();
+		}
+		
+		/**
+		 * @return name of the first required attribute who is missing, null if the job is complete
+		 */
+		public String getMissingAttribute() {
+			String[] job_values = { this.id, this.archiveMD5, this.path, this.revision, this.useGPU, this.frame, this.extras };
+			String[] job_names = { "id", "archive_md5", "path", "revision", "use_gpu", "frame", "extras" };
+			for (int i = 0; i < job_values.length; i++) {
+				if (job_values[i] == null) {
+					return "job." + job_names[i];
+				}
+			}
+			if (this.rendererMD5 == null) {
+				return "renderer.md5";
+			}
+			if (this.commandLine == null) {
+				return "renderer.commandline";
+			}
+			return null;
+		}
+		
+		public boolean hasFrames() {
+			return this.hasFrames;
+		}
+		
+		public int getRemainingFrames() {
+			return this.remainingFrames;
+		}
+		
+		public boolean hasJob() {
+			return this.hasJob;
+		}
+		
+		public boolean hasRenderer() {
+			return this.hasRenderer;
+		}
+		
+		public String getId() {
+			return this.id;
+		}
+		
+		public String getFrame() {
+			return this.frame;
+		}
+		
+		public String getRevision() {
+			return this.revision;
+		}
+		
+		public String getPath() {
+			return this.path;
+		}
+		
+		public String getArchiveMD5() {
+			return this.archiveMD5;
+		}
+		
+		public boolean getUseGPU() {
+			return "1".equals(this.useGPU);
+		}
+		
+		public String getExtras() {
+			return this.extras;
+		}
+		
+		public String getRendererMD5() {
+			return this.rendererMD5;
+		}
+		
+		public String getCommandLine() {
+			return this.commandLine;
+		}
+		
+		public String getScript() {
+			return this.script;
+		}
+		
+		public List<String> getFilesToDelete() {
+			return this.filesToDelete;
+		}
+	}
+	
+	/**
+	 * @param rootname_ name of the root node, who contains the status
+	 */
+	public static StatusResponse parseStatus(InputStream in_, String rootname_) throws XMLStreamException {
+		StatusResponse response = new StatusResponse();
+		XMLStreamReader reader = factory.get().createXMLStreamReader(in_);
+		try {
+			response.status = readRoot(reader, rootname_);
+		}
+		finally {
+			reader.close();
+		}
+		return response;
+	}
+	
+	public static ConfigResponse parseConfig(InputStream in_) throws XMLStreamException {
+		ConfigResponse response = new ConfigResponse();
+		XMLStreamReader reader = factory.get().createXMLStreamReader(in_);
+		try {
+			response.status = readRoot(reader, "config");
+			if (response.status == ServerCode.ERROR_NO_ROOT) {
+				return response;
+			}
+			while (reader.hasNext()) {
+				if (reader.next() == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals("request")) {
+					String type = reader.getAttributeValue(null, "type");
+					String path = reader.getAttributeValue(null, "path");
+					if (type != null && path != null) {
+						response.pages.put(type, path);
+						String max_period = reader.getAttributeValue(null, "max-period");
+						if (type.equals("keepmealive") && max_period != null) {
+							response.maxPeriod = Integer.parseInt(max_period);
+						}
+					}
+				}
+			}
+		}
+		finally {
+			reader.close();
+		}
+		return response;
+	}
+	
+	public static JobRequestResponse parseJobRequest(InputStream in_) throws XMLStreamException {
+		JobRequestResponse response = new JobRequestResponse();
+		XMLStreamReader reader = factory.get().createXMLStreamReader(in_);
+		try {
+			response.status = readRoot(reader, "jobrequest");
+			if (response.status == ServerCode.ERROR_NO_ROOT) {
+				return response;
+			}
+			int job_depth = -1; // depth of the job node while inside of it
+			int depth = 1;
+			while (reader.hasNext()) {
+				int event = reader.next();
+				if (event == XMLStreamConstants.END_ELEMENT) {
+					if (depth == job_depth) {
+						job_depth = -2; // only the first job is read
+					}
+					depth--;
+					continue;
+				}
+				if (event != XMLStreamConstants.START_ELEMENT) {
+					continue;
+				}
+				depth++;
+				String name = reader.getLocalName();
+				if (name.equals("frames") && response.hasFrames == false) {
+					response.hasFrames = true;
+					String remaining = reader.getAttributeValue(null, "remaining");
+					if (remaining != null) {
+						response.remainingFrames = Integer.parseInt(remaining);
+					}
+				}
+				else if (name.equals("job") && job_depth == -1) {
+					job_depth = depth;
+					response.hasJob = true;
+					response.id = reader.getAttributeValue(null, "id");
+					response.frame = reader.getAttributeValue(null, "frame");
+					response.revision = reader.getAttributeValue(null, "revision");
+					response.path = reader.getAttributeValue(null, "path");
+					response.archiveMD5 = reader.getAttributeValue(null, "archive_md5");
+					response.useGPU = reader.getAttributeValue(null, "use_gpu");
+					response.extras = reader.getAttributeValue(null, "extras");
+				}
+				else if (name.equals("renderer") && job_depth > 0 && response.hasRenderer == false) {
+					response.hasRenderer = true;
+					response.rendererMD5 = reader.getAttributeValue(null, "md5");
+					response.commandLine = reader.getAttributeValue(null, "commandline");
+				}
+				else if (name.equals("script") && job_depth > 0 && response.script == null) {
+					response.script = reader.getElementText(); // moves to the end of the node
+					depth--;
+				}
+				else if (name.equals("file")) {
+					String md5 = reader.getAttributeValue(null, "md5");
+					if (md5 != null && "delete".equals(reader.getAttributeValue(null, "action"))) {
+						response.filesToDelete.add(md5);
+					}
+				}
+			}
+		}
+		finally {
+			reader.close();
+		}
+		return response;
+	}
+	
+	/**
+	 * Move the reader to the root node
+	 * 
+	 * @return the status of the answer, ERROR_NO_ROOT if the root node is not rootname_
+	 */
+	private static ServerCode readRoot(XMLStreamReader reader_, String rootname_) throws XMLStreamException {
+		while (reader_.hasNext()) {
+			if (reader_.next() == XMLStreamConstants.START_ELEMENT) {
+				if (reader_.getLocalName().equals(rootname_) == false) {
+					return ServerCode.ERROR_NO_ROOT;
+				}
+				String status = reader_.getAttributeValue(null, "status");
+				if (status == null) {
+					return ServerCode.UNKNOWN;
+				}
+				return ServerCode.fromInt(Integer.parseInt(status));
+			}
+		}
+		return ServerCode.ERROR_NO_ROOT;
+	}
+}
@@ -21,24 +21,32 @@ package com.sheepit.client;
 
 import java.io.BufferedReader;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.ConnectException;
+import java.net.CookieManager;
+import java.net.CookiePolicy;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.NoRouteToHostException;
 import java.net.URL;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.net.URLEncoder;
 import java.net.UnknownHostException;
 import java.security.KeyManagementException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
@@ -46,6 +54,11 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
@@ -54,21 +67,9 @@ import javax.net.ssl.SSLSession;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerConfigurationException;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 
 import com.sheepit.client.Configuration.ComputeType;
 import com.sheepit.client.Error.ServerCode;
@@ -76,17 +77,24 @@ import com.sheepit.client.exception.FermeException;
 import com.sheepit.client.exception.FermeExceptionNoRightToRender;
 import com.sheepit.client.exception.FermeExceptionNoSession;
 import com.sheepit.client.exception.FermeExceptionSessionDisabled;
+import com.sheepit.client.hardware.gpu.GPUDevice;
 import com.sheepit.client.os.OS;
 
-public class Server extends Thread implements HostnameVerifier, X509TrustManager {
+public class Server implements HostnameVerifier, X509TrustManager {
+	public static final String PARTIAL_DOWNLOAD_EXTENSION = ".part";
+	private static final int HTTP_REQUESTED_RANGE_NOT_SATISFIABLE = 416;
+	private static final long SEGMENTED_DOWNLOAD_MIN_SEGMENT_SIZE = 16 * 1024 * 1024; // smaller files are not worth more connections
+	private static final XMLOutputFactory xml_output_factory = XMLOutputFactory.newInstance();
+	
 	private String base_url;
 	private Configuration user_config;
 	private Client client;
-	private ArrayList<String> cookies;
+	private CookieManager cookies; // thread safe, shared by every render slot
+	private SSLSocketFactory sslSocketFactory; // built once, keep-alive connections are only reused with the same factory
 	private HashMap<String, String> pages;
 	private Log log;
-	private long lastRequestTime;
-	private int keepmealive_duration; // time is ms
+	private volatile long lastRequestTime;
+	private volatile int keepmealive_duration; // time is ms
 	
 	public Server(String url_, Configuration user_config_, Client client_) {
 		super();
@@ -94,65 +102,126 @@ public class Server extends Thread implements HostnameVerifier, X509TrustManager
 		this.user_config = user_config_;
 		this.client = client_;
 		this.pages = new HashMap<String, String>();
-		this.cookies = new ArrayList<String>();
+		this.cookies = new CookieManager(null, CookiePolicy.ACCEPT_ALL);
+		this.sslSocketFactory = null;
 		this.log = Log.getInstance(this.user_config);
 		this.lastRequestTime = 0;
 		this.keepmealive_duration = 15 * 60 * 1000; // default 15min
 	}
 	
-	@Override
-	public void run() {
-		this.stayAlive();
+	/**
+	 * Schedule the next heart beat for when the server would consider the session or one of the rendering jobs as dead,
+	 * any other request done in the meantime pushes back the one of the session
+	 */
+	public void scheduleKeepAlive(final ScheduledExecutorService scheduler_) {
+		long delay = this.nextKeepAlive() - new Date().getTime();
+		if (delay <= 0) {
+			delay = 60 * 1000; // the last heart beat failed, retry in 1min
+		}
+		try {
+			scheduler_.schedule(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						stayAlive();
+					}
+					catch (Exception e) {
+						log.error("Server::scheduleKeepAlive exception " + e);
+					}
+					scheduleKeepAlive(scheduler_);
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+		catch (RejectedExecutionException e) {
+			// the client is stopping
+		}
+	}
+	
+	/**
+	 * @return time in ms when the next heart beat is due
+	 */
+	protected long nextKeepAlive() {
+		List<Job> jobs = this.getRenderingJobs();
+		if (jobs.isEmpty()) {
+			return this.lastRequestTime + this.keepmealive_duration;
+		}
+		long next = Long.MAX_VALUE;
+		for (Job job : jobs) {
+			next = Math.min(next, job.getLastKeepAlive() + this.keepmealive_duration);
+		}
+		return next;
 	}
 	
+	/**
+	 * Send a heart beat for every rendering job the server did not hear about for too long (the requests of the other slots
+	 * do not count), or for the session if no job is rendering
+	 */
 	public void stayAlive() {
-		while (true) {
-			long current_time = new Date().getTime();
-			if ((current_time - this.lastRequestTime) > this.keepmealive_duration) {
+		long current_time = new Date().getTime();
+		List<Job> jobs = this.getRenderingJobs();
+		if (jobs.isEmpty()) {
+			if ((current_time - this.lastRequestTime) >= this.keepmealive_duration) {
+				this.keepMeAlive(null);
+			}
+		}
+		else {
+			// one heart beat per rendering slot, they also keep the session alive
+			for (Job job : jobs) {
+				if ((current_time - job.getLastKeepAlive()) >= this.keepmealive_duration && this.keepMeAlive(job)) {
+					job.setLastKeepAlive(current_time);
+				}
+			}
+		}
+	}
+	
+	protected List<Job> getRenderingJobs() {
+		if (this.client == null) {
+			return new ArrayList<Job>();
+		}
+		return this.client.getRenderingJobs();
+	}
+	
+	/**
+	 * @return true if the server answered
+	 */
+	protected boolean keepMeAlive(Job job) {
+		boolean answered = false;
+		try {
+			String args = "";
+			if (job != null) {
+				args = "?frame=" + job.getFrameNumber() + "&job=" + job.getId();
+				if (job.getExtras() != null && job.getExtras().length() > 0) {
+					args += "&extras=" + job.getExtras();
+				}
+			}
+			
+			HttpURLConnection connection = this.HTTPRequest(this.base_url + "/server/keepmealive.php" + args);
+			if (connection == null) {
+				return false;
+			}
+			
+			if (connection.getResponseCode() == HttpURLConnection.HTTP_OK && connection.getContentType().startsWith("text/xml")) {
+				DataInputStream in = new DataInputStream(connection.getInputStream());
 				try {
-					String args = "";
-					if (this.client != null && this.client.getRenderingJob() != null) {
-						args = "?frame=" + this.client.getRenderingJob().getFrameNumber() + "&job=" + this.client.getRenderingJob().getId();
-						if (this.client.getRenderingJob().getExtras() != null && this.client.getRenderingJob().getExtras().length() > 0) {
-							args += "&extras=" + this.client.getRenderingJob().getExtras();
-						}
-					}
-					
-					HttpURLConnection connection = this.HTTPRequest(this.base_url + "/server/keepmealive.php" + args);
-					
-					if (connection.getResponseCode() == HttpURLConnection.HTTP_OK && connection.getContentType().startsWith("text/xml")) {
-						DataInputStream in = new DataInputStream(connection.getInputStream());
-						try {
-							Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(in);
-							ServerCode ret = Utils.statusIsOK(document, "keepmealive");
-							if (ret == ServerCode.KEEPMEALIVE_STOP_RENDERING) {
-								this.log.debug("Server::keeepmealive server ask to kill local render process");
-								// kill the current process, it will generate an error but it's okay
-								if (this.client != null && this.client.getRenderingJob() != null && this.client.getRenderingJob().getProcess() != null) {
-									OS.getOS().kill(this.client.getRenderingJob().getProcess());
-								}
-							}
-						}
-						catch (SAXException e) {
-						}
-						catch (ParserConfigurationException e) {
+					ServerCode ret = ResponseParser.parseStatus(in, "keepmealive").getStatus();
+					answered = true;
+					if (ret == ServerCode.KEEPMEALIVE_STOP_RENDERING) {
+						this.log.debug("Server::keeepmealive server ask to kill local render process");
+						// kill the current process, it will generate an error but it's okay
+						if (job != null && job.getProcess() != null) {
+							OS.getOS().kill(job.getProcess());
 						}
 					}
 				}
-				catch (IOException e) {
-					e.printStackTrace();
+				catch (XMLStreamException e) {
 				}
 			}
-			try {
-				Thread.sleep(60 * 1000); // 1min
-			}
-			catch (InterruptedException e) {
-				return;
-			}
-			catch (Exception e) {
-				return;
-			}
+			this.closeConnection(connection);
 		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+		return answered;
 	}
 	
 	@Override
@@ -186,51 +255,28 @@ public class Server extends Thread implements HostnameVerifier, X509TrustManager
 			
 			if (r == HttpURLConnection.HTTP_OK && contentType.startsWith("text/xml")) {
 				DataInputStream in = new DataInputStream(connection.getInputStream());
-				Document document = null;
+				ResponseParser.ConfigResponse config = null;
 				
 				try {
-					document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(in);
+					config = ResponseParser.parseConfig(in);
 				}
-				catch (SAXException e) {
-					this.log.error("getConfiguration error: failed to parse XML SAXException " + e);
-					return Error.Type.WRONG_CONFIGURATION;
-				}
-				catch (IOException e) {
-					this.log.error("getConfiguration error: failed to parse XML IOException " + e);
-					return Error.Type.WRONG_CONFIGURATION;
-				}
-				catch (ParserConfigurationException e) {
-					this.log.error("getConfiguration error: failed to parse XML ParserConfigurationException " + e);
+				catch (XMLStreamException e) {
+					this.log.error("getConfiguration error: failed to parse XML XMLStreamException " + e);
 					return Error.Type.WRONG_CONFIGURATION;
 				}
 				
-				ServerCode ret = Utils.statusIsOK(document, "config");
+				ServerCode ret = config.getStatus();
 				if (ret != ServerCode.OK) {
 					return Error.ServerCodeToType(ret);
 				}
 				
-				Element config_node = null;
-				NodeList ns = null;
-				ns = document.getElementsByTagName("config");
-				if (ns.getLength() == 0) {
-					this.log.error("getConfiguration error: failed to parse XML, no node 'config_serveur'");
-					return Error.Type.WRONG_CONFIGURATION;
-				}
-				config_node = (Element) ns.item(0);
-				
-				ns = config_node.getElementsByTagName("request");
-				if (ns.getLength() == 0) {
+				if (config.getPages().isEmpty()) {
 					this.log.error("getConfiguration error: failed to parse XML, node 'config' have no child node 'request'");
 					return Error.Type.WRONG_CONFIGURATION;
 				}
-				for (int i = 0; i < ns.getLength(); i++) {
-					Element element = (Element) ns.item(i);
-					if (element.hasAttribute("type") && element.hasAttribute("path")) {
-						this.pages.put(element.getAttribute("type"), element.getAttribute("path"));
-						if (element.getAttribute("type").equals("keepmealive") && element.hasAttribute("max-period")) {
-							this.keepmealive_duration = (Integer.parseInt(element.getAttribute("max-period")) - 120) * 1000; // put 2min of safety net
-						}
-					}
+				this.pages.putAll(config.getPages());
+				if (config.getMaxPeriod() != -1) {
+					this.keepmealive_duration = (config.getMaxPeriod() - 120) * 1000; // put 2min of safety net
 				}
 			}
 			else {
@@ -256,28 +302,30 @@ public class Server extends Thread implements HostnameVerifier, X509TrustManager
 			return Error.Type.UNKNOWN;
 		}
 		finally {
-			if (connection != null) {
-				connection.disconnect();
-			}
+			this.closeConnection(connection);
 		}
 		return Error.Type.OK;
 	}
 	
 	public Job requestJob() throws FermeException, FermeExceptionNoRightToRender, FermeExceptionNoSession, FermeExceptionSessionDisabled {
-		this.log.debug("Server::requestJob");
+		return this.requestJob(this.user_config.getComputeMethod(), this.user_config.getGPUDevice());
+	}
+	
+	public Job requestJob(ComputeType compute_method_, GPUDevice gpu_) throws FermeException, FermeExceptionNoRightToRender, FermeExceptionNoSession, FermeExceptionSessionDisabled {
+		this.log.debug("Server::requestJob " + compute_method_ + " " + gpu_);
 		String url_contents = "";
 		
 		HttpURLConnection connection = null;
 		try {
-			String url = String.format("%s?computemethod=%s", this.getPage("request-job"), this.user_config.computeMethodToInt());
-			if (this.user_config.getComputeMethod() != ComputeType.CPU_ONLY && this.user_config.getGPUDevice() != null) {
+			String url = String.format("%s?computemethod=%s", this.getPage("request-job"), compute_method_.ordinal());
+			if (compute_method_ != ComputeType.CPU_ONLY && gpu_ != null) {
 				String gpu_model = "";
 				try {
-					gpu_model = URLEncoder.encode(this.user_config.getGPUDevice().getModel(), "UTF-8");
+					gpu_model = URLEncoder.encode(gpu_.getModel(), "UTF-8");
 				}
 				catch (UnsupportedEncodingException e) {
 				}
-				url += "&gpu_model=" + gpu_model + "&gpu_ram=" + this.user_config.getGPUDevice().getMemory();
+				url += "&gpu_model=" + gpu_model + "&gpu_ram=" + gpu_.getMemory();
 			}
 			
 			connection = this.HTTPRequest(url, this.generateXMLForMD5cache());
@@ -287,24 +335,18 @@ public class Server extends Thread implements HostnameVerifier, X509TrustManager
 			
 			if (r == HttpURLConnection.HTTP_OK && contentType.startsWith("text/xml")) {
 				DataInputStream in = new DataInputStream(connection.getInputStream());
-				Document document = null;
+				ResponseParser.JobRequestResponse response = null;
 				try {
-					document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(in);
+					response = ResponseParser.parseJobRequest(in);
 				}
-				catch (SAXException e) {
-					throw new FermeException("error requestJob: parseXML failed, SAXException " + e);
-				}
-				catch (IOException e) {
-					throw new FermeException("error requestJob: parseXML failed IOException " + e);
-				}
-				catch (ParserConfigurationException e) {
-					throw new FermeException("error requestJob: parseXML failed ParserConfigurationException " + e);
+				catch (XMLStreamException e) {
+					throw new FermeException("error requestJob: parseXML failed, XMLStreamException " + e);
 				}
 				
-				ServerCode ret = Utils.statusIsOK(document, "jobrequest");
+				ServerCode ret = response.getStatus();
 				if (ret != ServerCode.OK) {
 					if (ret == ServerCode.JOB_REQUEST_NOJOB) {
-						handleFileMD5DeleteDocument(document, "jobrequest");
+						handleFileMD5Delete(response.getFilesToDelete());
 						return null;
 					}
 					else if (ret == ServerCode.JOB_REQUEST_ERROR_NO_RENDERING_RIGHT) {
@@ -316,87 +358,47 @@ public class Server extends Thread implements HostnameVerifier, X509TrustManager
 					else if (ret == ServerCode.JOB_REQUEST_ERROR_SESSION_DISABLED) {
 						throw new FermeExceptionSessionDisabled();
 					}
-					this.log.error("Server::requestJob: Utils.statusIsOK(document, 'jobrequest') -> ret " + ret);
+					this.log.error("Server::requestJob: status of 'jobrequest' -> ret " + ret);
 					throw new FermeException("error requestJob: status is not ok (it's " + ret + ")");
 				}
 				
-				handleFileMD5DeleteDocument(document, "jobrequest");
-				
-				Element a_node = null;
-				NodeList ns = null;
+				handleFileMD5Delete(response.getFilesToDelete());
 				
-				ns = document.getElementsByTagName("frames");
-				if (ns.getLength() == 0) {
+				if (response.hasFrames() == false) {
 					throw new FermeException("error requestJob: parseXML failed, no 'frame' node");
 				}
-				a_node = (Element) ns.item(0);
-				
-				int remaining_frames = -1;
-				if (a_node.hasAttribute("remaining")) {
-					remaining_frames = Integer.parseInt(a_node.getAttribute("remaining"));
-				}
 				
-				ns = document.getElementsByTagName("job");
-				if (ns.getLength() == 0) {
+				if (response.hasJob() == false) {
 					throw new FermeException("error requestJob: parseXML failed, no 'job' node");
 				}
-				Element job_node = (Element) ns.item(0);
 				
-				ns = job_node.getElementsByTagName("renderer");
-				if (ns.getLength() == 0) {
+				if (response.hasRenderer() == false) {
 					throw new FermeException("error requestJob: parseXML failed, node 'job' have no sub-node 'renderer'");
 				}
-				Element renderer_node = (Element) ns.item(0);
-				
-				String script = "import bpy\nbpy.context.user_preferences.filepaths.temporary_directory = \"" + this.user_config.workingDirectory.getAbsolutePath().replace("\\", "\\\\") + "\"\n";
-				try {
-					ns = job_node.getElementsByTagName("script");
-					if (ns.getLength() != 0) {
-						Element a_node3 = (Element) ns.item(0);
-						script += new String(a_node3.getTextContent());
-					}
-				}
-				catch (Exception e) {
-					e.printStackTrace();
-				}
-				
-				String[] job_node_require_attribute = { "id", "archive_md5", "path", "revision", "use_gpu", "frame", "extras" };
-				String[] renderer_node_require_attribute = { "md5", "commandline" };
-				
-				for (String e : job_node_require_attribute) {
-					if (job_node.hasAttribute(e) == false) {
-						throw new FermeException("error requestJob: parseXML failed, job_node have to attribute '" + e + "'");
-					}
-				}
 				
-				for (String e : renderer_node_require_attribute) {
-					if (renderer_node.hasAttribute(e) == false) {
-						throw new FermeException("error requestJob: parseXML failed, renderer_node have to attribute '" + e + "'");
-					}
+				String missing_attribute = response.getMissingAttribute();
+				if (missing_attribute != null) {
+					throw new FermeException("error requestJob: parseXML failed, missing attribute '" + missing_attribute + "'");
 				}
 				
-				boolean use_gpu = (job_node.getAttribute("use_gpu").compareTo("1") == 0);
-				
-				String frame_extras = "";
-				if (job_node.hasAttribute("extras")) {
-					frame_extras = job_node.getAttribute("extras");
-				}
+				// the temporary directory is set by the client once the job has the working directory of its slot
+				String script = response.getScript() != null ? response.getScript() : "";
 				
 				Job a_job = new Job(
 						this.user_config,
-						job_node.getAttribute("id"),
-						job_node.getAttribute("frame"),
-						job_node.getAttribute("revision"),
-						job_node.getAttribute("path").replace("/", File.separator),
-						use_gpu,
-						renderer_node.getAttribute("commandline"),
+						response.getId(),
+						response.getFrame(),
+						response.getRevision(),
+						response.getPath().replace("/", File.separator),
+						response.getUseGPU(),
+						response.getCommandLine(),
 						script,
-						job_node.getAttribute("archive_md5"),
-						renderer_node.getAttribute("md5"),
-						frame_extras
+						response.getArchiveMD5(),
+						response.getRendererMD5(),
+						response.getExtras()
 						);
 				
-				this.client.getGui().framesRemaining(remaining_frames);
+				this.client.getGui().framesRemaining(response.getRemainingFrames());
 				
 				return a_job;
 			}
@@ -427,9 +429,7 @@ public class Server extends Thread implements HostnameVerifier, X509TrustManager
 			throw new FermeException("error requestJob: unknow exception " + e);
 		}
 		finally {
-			if (connection != null) {
-				connection.disconnect();
-			}
+			this.closeConnection(connection);
 		}
 		throw new FermeException("error requestJob, end of function");
 	}
@@ -440,35 +440,13 @@ public class Server extends Thread implements HostnameVerifier, X509TrustManager
 	
 	public HttpURLConnection HTTPRequest(String url_, String data_) throws IOException {
 		this.log.debug("Server::HTTPRequest url(" + url_ + ")");
-		HttpURLConnection connection = null;
-		URL url = new URL(url_);
-		
-		connection = (HttpURLConnection) url.openConnection();
+		HttpURLConnection connection = this.openConnection(url_);
+		if (connection == null) {
+			return null;
+		}
 		connection.setDoInput(true);
 		connection.setDoOutput(true);
 		connection.setRequestMethod("GET");
-		for (String cookie : this.cookies) {
-			connection.setRequestProperty("Cookie", cookie);
-		}
-		
-		if (url_.startsWith("https://")) {
-			try {
-				SSLContext sc;
-				sc = SSLContext.getInstance("SSL");
-				sc.init(null, new TrustManager[] { this }, null);
-				SSLSocketFactory factory = sc.getSocketFactory();
-				((HttpsURLConnection) connection).setSSLSocketFactory(factory);
-				((HttpsURLConnection) connection).setHostnameVerifier(this);
-			}
-			catch (NoSuchAlgorithmException e) {
-				e.printStackTrace();
-				return null;
-			}
-			catch (KeyManagementException e) {
-				e.printStackTrace();
-				return null;
-			}
-		}
 		
 		if (data_ != null) {
 			connection.setRequestProperty("Content-type", "application/x-www-form-urlencoded");
@@ -479,155 +457,527 @@ public class Server extends Thread implements HostnameVerifier, X509TrustManager
 			out.close();
 		}
 		
-		String headerName = null;
-		for (int i = 1; (headerName = connection.getHeaderFieldKey(i)) != null; i++) {
-			if (headerName.equals("Set-Cookie")) {
-				String cookie = connection.getHeaderField(i);
-				
-				boolean cookieIsPresent = false;
-				for (String value : this.cookies) {
-					if (value.equalsIgnoreCase(cookie))
-						cookieIsPresent = true;
+		this.storeCookies(connection);
+		
+		this.lastRequestTime = new Date().getTime();
+		
+		return connection;
+	}
+	
+	/**
+	 * Open a connection with the session cookies and the shared ssl socket factory.
+	 * The connection comes from the keep-alive pool if one is available.
+	 * 
+	 * @return the connection or null if the ssl layer can not be initialized
+	 */
+	protected HttpURLConnection openConnection(String url_) throws IOException {
+		URL url = new URL(url_);
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		
+		try {
+			Map<String, List<String>> headers = this.cookies.get(url.toURI(), new HashMap<String, List<String>>());
+			for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+				if (header.getValue().isEmpty() == false) {
+					StringBuilder value = new StringBuilder();
+					for (String cookie : header.getValue()) {
+						if (value.length() > 0) {
+							value.append("; ");
+						}
+						value.append(cookie);
+					}
+					connection.setRequestProperty(header.getKey(), value.toString());
 				}
-				if (!cookieIsPresent)
-					this.cookies.add(cookie);
 			}
 		}
+		catch (URISyntaxException e) {
+			this.log.error("Server::openConnection failed to get cookies for " + url_ + " " + e);
+		}
 		
-		this.lastRequestTime = new Date().getTime();
+		if (connection instanceof HttpsURLConnection) {
+			SSLSocketFactory factory = this.getSSLSocketFactory();
+			if (factory == null) {
+				return null;
+			}
+			((HttpsURLConnection) connection).setSSLSocketFactory(factory);
+			((HttpsURLConnection) connection).setHostnameVerifier(this);
+		}
 		
 		return connection;
 	}
 	
+	protected void storeCookies(HttpURLConnection connection) throws IOException {
+		try {
+			this.cookies.put(connection.getURL().toURI(), connection.getHeaderFields());
+		}
+		catch (URISyntaxException e) {
+			this.log.error("Server::storeCookies failed to store cookies of " + connection.getURL() + " " + e);
+		}
+	}
+	
+	/**
+	 * Read what is left of the answer and close the stream instead of disconnecting,
+	 * so the underlying socket goes back to the keep-alive pool.
+	 */
+	protected void closeConnection(HttpURLConnection connection) {
+		if (connection == null) {
+			return;
+		}
+		InputStream in = null;
+		try {
+			in = connection.getInputStream();
+		}
+		catch (IOException e) {
+			in = connection.getErrorStream();
+		}
+		if (in == null) {
+			return;
+		}
+		try {
+			byte[] buffer = new byte[4096];
+			while (in.read(buffer) != -1) {
+			}
+		}
+		catch (IOException e) {
+			// the stream was already read and closed
+		}
+		finally {
+			try {
+				in.close();
+			}
+			catch (IOException e) {
+			}
+		}
+	}
+	
+	private synchronized SSLSocketFactory getSSLSocketFactory() {
+		if (this.sslSocketFactory == null) {
+			try {
+				SSLContext sc = SSLContext.getInstance("SSL");
+				sc.init(null, new TrustManager[] { this }, null);
+				this.sslSocketFactory = sc.getSocketFactory();
+			}
+			catch (NoSuchAlgorithmException e) {
+				this.log.error("Server::getSSLSocketFactory, exception NoSuchAlgorithmException " + e);
+			}
+			catch (KeyManagementException e) {
+				this.log.error("Server::getSSLSocketFactory, exception KeyManagementException " + e);
+			}
+		}
+		return this.sslSocketFactory;
+	}
+	
+	/**
+	 * Download a file, the data is written in destination_ + ".part" and renamed to destination_ at the end.
+	 * If the transfer fails it's resumed from the end of the partial file (even after a restart of the client)
+	 * 
+	 * @return 0 on success, -1 if the server refused the request, -2 if the transfer failed
+	 */
 	public int HTTPGetFile(String url_, String destination_, Gui gui_, String status_) {
+		return this.HTTPGetFile(url_, destination_, gui_, status_, null);
+	}
+	
+	/**
+	 * Same as HTTPGetFile but digest_ is updated with the content of the file while it's written,
+	 * so the caller does not have to read the whole file again to check it.
+	 */
+	public int HTTPGetFile(String url_, String destination_, Gui gui_, String status_, MessageDigest digest_) {
+		return this.HTTPGetFile(url_, destination_, gui_, status_, digest_, null);
+	}
+	
+	/**
+	 * Same as HTTPGetFile but the archive is also extracted while it's downloaded by unzip_ (if not null).
+	 * The caller must check unzip_.finish() to know if the extraction succeeded.
+	 */
+	public int HTTPGetFile(String url_, String destination_, Gui gui_, String status_, MessageDigest digest_, StreamingUnzip unzip_) {
 		// the destination_ parent directory must exist
+		File destination = new File(destination_);
+		File part = new File(destination_ + PARTIAL_DOWNLOAD_EXTENSION);
+		int max_try = 5;
+		int ret = -2;
+		for (int nb_try = 1; nb_try <= max_try; nb_try++) {
+			ret = this.HTTPGetFilePart(url_, part, gui_, status_, digest_, unzip_);
+			if (ret == 0) {
+				destination.delete();
+				if (part.renameTo(destination) == false) {
+					this.log.error("Server::HTTPGetFile failed to rename " + part + " to " + destination);
+					return -2;
+				}
+				return 0;
+			}
+			if (ret == -1) { // no point to retry
+				return ret;
+			}
+			
+			if (nb_try < max_try) {
+				long wait = Math.min(2000L << nb_try, 60000L); // 4s, 8s, 16s, 32s
+				this.log.debug("Server::HTTPGetFile transfer failed, will resume in " + (wait / 1000) + "s (try " + nb_try + "/" + max_try + ")");
+				if (this.client != null) {
+					if (this.client.sleepUntil(System.currentTimeMillis() + wait) == false) {
+						return ret; // the client is stopping
+					}
+				}
+				else {
+					try {
+						Thread.sleep(wait);
+					}
+					catch (InterruptedException e) {
+						return ret;
+					}
+				}
+			}
+		}
+		return ret;
+	}
+	
+	private int HTTPGetFilePart(String url_, File part_, Gui gui_, String status_, MessageDigest digest_, StreamingUnzip unzip_) {
+		InputStream inStrm = null;
+		FileOutputStream fos = null;
 		try {
-			HttpURLConnection httpCon = this.HTTPRequest(url_);
+			long offset = part_.exists() ? part_.length() : 0;
 			
-			InputStream inStrm = httpCon.getInputStream();
-			if (httpCon.getResponseCode() != HttpURLConnection.HTTP_OK) {
+			this.log.debug("Server::HTTPGetFile url(" + url_ + ") offset " + offset);
+			HttpURLConnection httpCon = this.openConnection(url_);
+			if (httpCon == null) {
+				return -2;
+			}
+			httpCon.setRequestMethod("GET");
+			if (offset > 0) {
+				httpCon.setRequestProperty("Range", "bytes=" + offset + "-");
+			}
+			
+			int r = httpCon.getResponseCode();
+			this.storeCookies(httpCon);
+			if (r == HttpURLConnection.HTTP_OK) {
+				offset = 0; // the server does not support range request, start from the beginning
+			}
+			else if (r == HTTP_REQUESTED_RANGE_NOT_SATISFIABLE) {
+				// the partial file is not a prefix of the archive
+				this.closeConnection(httpCon);
+				part_.delete();
+				return -2;
+			}
+			else if (r != HttpURLConnection.HTTP_PARTIAL) {
+				this.closeConnection(httpCon);
 				return -1;
 			}
-			int size = httpCon.getContentLength();
+			else if (this.getRangeStart(httpCon) != offset) {
+				// appending another part of the file would corrupt it, only the md5 at the end would tell
+				this.log.error("Server::HTTPGetFile asked for the data from " + offset + " but got " + httpCon.getHeaderField("Content-Range") + ", restart from the beginning");
+				this.closeConnection(httpCon);
+				part_.delete();
+				if (offset > 0) {
+					return this.HTTPGetFilePart(url_, part_, gui_, status_, digest_, unzip_);
+				}
+				return -2;
+			}
+			
+			inStrm = httpCon.getInputStream();
+			long size = offset + httpCon.getContentLengthLong(); // -1 + offset if the size is unknown
+			
+			if (unzip_ != null && unzip_.getPosition() > offset) {
+				// the download restarted from the beginning, the extraction can not go back
+				unzip_.abort();
+			}
+			
+			if (offset == 0 && this.user_config.getDownloadSegments() > 1 && size >= 2 * SEGMENTED_DOWNLOAD_MIN_SEGMENT_SIZE) {
+				if (unzip_ != null) {
+					// the segments are not received in order, the archive will be extracted once it's complete
+					unzip_.abort();
+				}
+				int ret = this.HTTPGetFileSegmented(url_, part_, inStrm, size, gui_, status_);
+				if (ret == 0 && digest_ != null) {
+					// the segments are not received in order, the digest can only be done on the assembled file
+					digest_.reset();
+					Utils.updateDigest(digest_, part_, size);
+				}
+				return ret;
+			}
+			
+			if (digest_ != null) {
+				digest_.reset();
+				if (offset > 0) {
+					Utils.updateDigest(digest_, part_, offset); // data from the previous try
+				}
+			}
+			if (unzip_ != null && unzip_.getPosition() < offset) {
+				Utils.copy(part_, unzip_.getPosition(), offset, unzip_); // partial file from a previous run of the client
+			}
 			long start = new Date().getTime();
 			
-			FileOutputStream fos = new FileOutputStream(destination_);
+			fos = new FileOutputStream(part_, offset > 0);
 			byte[] ch = new byte[512 * 1024];
 			int nb;
-			long writed = 0;
+			long writed = offset;
 			long last_gui_update = 0; // size in byte
 			while ((nb = inStrm.read(ch)) != -1) {
 				fos.write(ch, 0, nb);
+				this.countDownloaded(nb);
+				if (digest_ != null) {
+					digest_.update(ch, 0, nb);
+				}
+				if (unzip_ != null) {
+					unzip_.write(ch, 0, nb);
+				}
 				writed += nb;
-				if ((writed - last_gui_update) > 1000000) { // only update the gui every 1MB
+				if ((writed - last_gui_update) > 1000000 && size > 0) { // only update the gui every 1MB
 					gui_.status(String.format(status_, (int) (100.0 * writed / size)));
 					last_gui_update = writed;
 				}
 			}
-			fos.close();
-			inStrm.close();
+			if (writed < size) { // the connection was closed before the end
+				this.log.error("Server::HTTPGetFile connection closed after " + writed + " bytes on " + size);
+				return -2;
+			}
 			long end = new Date().getTime();
-			this.log.debug(String.format("File downloaded at %.1f kB/s", (size / 1000) / ((float) (end - start) / 1000)));
+			this.log.debug(String.format("File downloaded at %.1f kB/s", ((writed - offset) / 1000) / ((float) (end - start) / 1000)));
 			this.lastRequestTime = new Date().getTime();
 			return 0;
 		}
 		catch (Exception e) {
-			System.err.println("Server::HTTPGetFile exception");
-			e.printStackTrace();
+			System.err.println("Server::HTTPGetFile exception " + e);
+			this.log.error("Server::HTTPGetFile exception " + e);
+		}
+		finally {
+			if (fos != null) {
+				try {
+					fos.close();
+				}
+				catch (IOException e) {
+				}
+			}
+			if (inStrm != null) {
+				try {
+					inStrm.close();
+				}
+				catch (IOException e) {
+				}
+			}
 		}
 		return -2;
 	}
 	
+	/**
+	 * Download the file with several connections at the same time, each one is fetching a range of the file.
+	 * The first range is read from the already opened answer.
+	 */
+	private int HTTPGetFileSegmented(final String url_, File part_, InputStream first_segment_, final long size_, Gui gui_, String status_) {
+		int nb_segments = (int) Math.min(this.user_config.getDownloadSegments(), size_ / SEGMENTED_DOWNLOAD_MIN_SEGMENT_SIZE);
+		final long segment_size = (size_ + nb_segments - 1) / nb_segments;
+		this.log.debug("Server::HTTPGetFileSegmented " + nb_segments + " segments of " + segment_size + " bytes");
+		
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(part_, "rw");
+			file.setLength(size_); // preallocate, every segment is written at its own position
+			final FileChannel channel = file.getChannel();
+			final AtomicLong downloaded = new AtomicLong(0);
+			final boolean[] segments_ok = new boolean[nb_segments];
+			long start = new Date().getTime();
+			
+			List<Thread> threads = new ArrayList<Thread>();
+			for (int i = 1; i < nb_segments; i++) {
+				final int segment = i;
+				Thread thread = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						long segment_start = segment * segment_size;
+						long segment_end = Math.min(segment_start + segment_size, size_);
+						InputStream in = null;
+						try {
+							HttpURLConnection connection = openConnection(url_);
+							if (connection == null) {
+								return;
+							}
+							connection.setRequestMethod("GET");
+							connection.setRequestProperty("Range", "bytes=" + segment_start + "-" + (segment_end - 1));
+							if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+								log.error("Server::HTTPGetFileSegmented segment " + segment + " got http code " + connection.getResponseCode());
+								closeConnection(connection);
+								return;
+							}
+							if (getRangeStart(connection) != segment_start) {
+								log.error("Server::HTTPGetFileSegmented segment " + segment + " got range " + connection.getHeaderField("Content-Range"));
+								closeConnection(connection);
+								return;
+							}
+							in = connection.getInputStream();
+							segments_ok[segment] = downloadSegment(in, channel, segment_start, segment_end, downloaded, null, null, size_);
+						}
+						catch (IOException e) {
+							log.error("Server::HTTPGetFileSegmented segment " + segment + " exception " + e);
+						}
+						finally {
+							if (in != null) {
+								try {
+									in.close();
+								}
+								catch (IOException e) {
+								}
+							}
+						}
+					}
+				});
+				thread.start();
+				threads.add(thread);
+			}
+			
+			segments_ok[0] = this.downloadSegment(first_segment_, channel, 0, Math.min(segment_size, size_), downloaded, gui_, status_, size_);
+			
+			for (Thread thread : threads) {
+				thread.join();
+			}
+			
+			for (int i = 0; i < nb_segments; i++) {
+				if (segments_ok[i] == false) {
+					this.log.error("Server::HTTPGetFileSegmented segment " + i + " failed");
+					file.close();
+					file = null;
+					part_.delete(); // the file has holes, it can not be resumed
+					return -2;
+				}
+			}
+			
+			long end = new Date().getTime();
+			this.log.debug(String.format("File downloaded at %.1f kB/s", (size_ / 1000) / ((float) (end - start) / 1000)));
+			this.lastRequestTime = new Date().getTime();
+			return 0;
+		}
+		catch (Exception e) {
+			this.log.error("Server::HTTPGetFileSegmented exception " + e);
+			part_.delete();
+		}
+		finally {
+			if (file != null) {
+				try {
+					file.close();
+				}
+				catch (IOException e) {
+				}
+			}
+		}
+		return -2;
+	}
+	
+	/**
+	 * @return first byte of the answer according to its Content-Range header (bytes start-end/size), -1 if it's missing or invalid
+	 */
+	private long getRangeStart(HttpURLConnection connection_) {
+		String range = connection_.getHeaderField("Content-Range");
+		if (range == null) {
+			return -1;
+		}
+		range = range.trim();
+		if (range.startsWith("bytes") == false) {
+			return -1;
+		}
+		int dash = range.indexOf('-');
+		if (dash == -1) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(range.substring("bytes".length(), dash).trim());
+		}
+		catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+	
+	private void countDownloaded(long bytes_) {
+		if (this.client != null) {
+			this.client.getMetrics().addBytesDownloaded(bytes_);
+		}
+	}
+	
+	/**
+	 * @return true if every byte between start_ and end_ was written
+	 */
+	private boolean downloadSegment(InputStream in_, FileChannel channel_, long start_, long end_, AtomicLong downloaded_, Gui gui_, String status_, long size_) throws IOException {
+		byte[] ch = new byte[512 * 1024];
+		ByteBuffer buffer = ByteBuffer.wrap(ch);
+		long position = start_;
+		long last_gui_update = 0;
+		int nb;
+		while (position < end_ && (nb = in_.read(ch, 0, (int) Math.min(ch.length, end_ - position))) != -1) {
+			buffer.clear();
+			buffer.limit(nb);
+			while (buffer.hasRemaining()) {
+				position += channel_.write(buffer, position);
+			}
+			long total = downloaded_.addAndGet(nb);
+			this.countDownloaded(nb);
+			if (gui_ != null && (total - last_gui_update) > 1000000) { // only update the gui every 1MB
+				gui_.status(String.format(status_, (int) (100.0 * total / size_)));
+				last_gui_update = total;
+			}
+		}
+		return position == end_;
+	}
+	
 	public ServerCode HTTPSendFile(String surl, String file1) {
+		return this.HTTPSendFile(surl, file1, "jobvalidate");
+	}
+	
+	/**
+	 * @param rootname_ name of the root node of the answer, who contains the status
+	 */
+	public ServerCode HTTPSendFile(String surl, String file1, String rootname_) {
 		this.log.debug("Server::HTTPSendFile(" + surl + "," + file1 + ")");
 		
 		HttpURLConnection conn = null;
-		DataOutputStream dos = null;
 		BufferedReader inStream = null;
 		
-		String exsistingFileName = file1;
-		File fFile2Snd = new File(exsistingFileName);
+		File fFile2Snd = new File(file1);
 		
 		String lineEnd = "\r\n";
 		String twoHyphens = "--";
 		String boundary = "***232404jkg4220957934FW**";
 		
-		int bytesRead, bytesAvailable, bufferSize;
-		byte[] buffer;
-		int maxBufferSize = 1 * 1024 * 1024;
+		byte[] head = (twoHyphens + boundary + lineEnd + "Content-Disposition: form-data; name=\"file\";" + " filename=\"" + fFile2Snd.getName() + "\"" + lineEnd + lineEnd).getBytes(StandardCharsets.UTF_8);
+		byte[] tail = (lineEnd + twoHyphens + boundary + twoHyphens + lineEnd).getBytes(StandardCharsets.UTF_8);
 		
 		String urlString = surl;
 		
+		FileInputStream fileInputStream = null;
+		boolean sent = false;
 		try {
-			FileInputStream fileInputStream = new FileInputStream(new File(exsistingFileName));
-			URL url = new URL(urlString);
+			fileInputStream = new FileInputStream(fFile2Snd);
+			long file_size = fileInputStream.getChannel().size();
 			
-			conn = (HttpURLConnection) url.openConnection();
+			conn = this.openConnection(urlString);
+			if (conn == null) {
+				return ServerCode.UNKNOWN;
+			}
 			conn.setDoInput(true);
 			conn.setDoOutput(true);
 			conn.setUseCaches(false);
-			for (String cookie : this.cookies) {
-				conn.setRequestProperty("Cookie", cookie);
-			}
+			// the body is streamed from the file, otherwise HttpURLConnection keeps the whole frame in memory to compute its length
+			conn.setFixedLengthStreamingMode(head.length + file_size + tail.length);
 			
 			conn.setRequestMethod("POST");
 			conn.setRequestProperty("Connection", "Keep-Alive");
 			conn.setRequestProperty("Content-Type", "multipart/form-data;boundary=" + boundary);
 			
-			if (urlString.startsWith("https://")) {
-				try {
-					SSLContext sc;
-					sc = SSLContext.getInstance("SSL");
-					sc.init(null, new TrustManager[] { this }, null);
-					SSLSocketFactory factory = sc.getSocketFactory();
-					((HttpsURLConnection) conn).setSSLSocketFactory(factory);
-					((HttpsURLConnection) conn).setHostnameVerifier(this);
-				}
-				catch (NoSuchAlgorithmException e) {
-					this.log.error("Server::HTTPSendFile, exception NoSuchAlgorithmException " + e);
-					try {
-						fileInputStream.close();
-					}
-					catch (Exception e1) {
-						
-					}
-					return ServerCode.UNKNOWN;
-				}
-				catch (KeyManagementException e) {
-					this.log.error("Server::HTTPSendFile, exception KeyManagementException " + e);
-					try {
-						fileInputStream.close();
-					}
-					catch (Exception e1) {
-						
-					}
-					return ServerCode.UNKNOWN;
+			OutputStream out = conn.getOutputStream();
+			out.write(head);
+			
+			byte[] buffer = new byte[64 * 1024];
+			long remaining = file_size;
+			while (remaining > 0) {
+				int len = fileInputStream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+				if (len == -1) {
+					throw new IOException("file " + file1 + " is shorter than expected");
 				}
+				out.write(buffer, 0, len);
+				remaining -= len;
 			}
 			
-			dos = new DataOutputStream(conn.getOutputStream());
-			dos.writeBytes(twoHyphens + boundary + lineEnd);
-			dos.writeBytes("Content-Disposition: form-data; name=\"file\";" + " filename=\"" + fFile2Snd.getName() + "\"" + lineEnd);
-			dos.writeBytes(lineEnd);
-			
-			bytesAvailable = fileInputStream.available();
-			bufferSize = Math.min(bytesAvailable, maxBufferSize);
-			buffer = new byte[bufferSize];
-			
-			bytesRead = fileInputStream.read(buffer, 0, bufferSize);
-			
-			while (bytesRead > 0) {
-				dos.write(buffer, 0, bufferSize);
-				bytesAvailable = fileInputStream.available();
-				bufferSize = Math.min(bytesAvailable, maxBufferSize);
-				bytesRead = fileInputStream.read(buffer, 0, bufferSize);
+			out.write(tail);
+			out.flush();
+			out.close();
+			sent = true;
+			if (this.client != null && "jobvalidate".equals(rootname_)) { // only the frames, not the error reports
+				this.client.getMetrics().addBytesUploaded(file_size);
 			}
-			
-			dos.writeBytes(lineEnd);
-			dos.writeBytes(twoHyphens + boundary + twoHyphens + lineEnd);
-			fileInputStream.close();
-			dos.flush();
-			dos.close();
 		}
 		catch (MalformedURLException ex) {
 			this.log.error("Server::HTTPSendFile, exception MalformedURLException " + ex);
@@ -641,13 +991,28 @@ public class Server extends Thread implements HostnameVerifier, X509TrustManager
 			this.log.error("Server::HTTPSendFile, exception Exception " + e6);
 			return ServerCode.UNKNOWN;
 		}
+		finally {
+			if (fileInputStream != null) {
+				try {
+					fileInputStream.close();
+				}
+				catch (IOException e) {
+				}
+			}
+			if (sent == false && conn != null) {
+				// the request is incomplete, the connection can not go back to the keep-alive pool
+				conn.disconnect();
+			}
+		}
 		
 		int r;
 		try {
 			r = conn.getResponseCode();
+			this.storeCookies(conn);
 		}
 		catch (IOException e1) {
 			e1.printStackTrace();
+			this.closeConnection(conn);
 			return ServerCode.UNKNOWN;
 		}
 		String contentType = conn.getContentType();
@@ -659,28 +1024,23 @@ public class Server extends Thread implements HostnameVerifier, X509TrustManager
 			}
 			catch (IOException e1) {
 				e1.printStackTrace();
+				this.closeConnection(conn);
 				return ServerCode.UNKNOWN;
 			}
-			Document document = null;
+			ServerCode ret1;
 			try {
-				document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(in);
+				ret1 = ResponseParser.parseStatus(in, rootname_).getStatus();
 			}
-			catch (SAXException e) {
+			catch (XMLStreamException e) {
 				e.printStackTrace();
 				return ServerCode.UNKNOWN;
 			}
-			catch (IOException e) {
-				e.printStackTrace();
-				return ServerCode.UNKNOWN;
-			}
-			catch (ParserConfigurationException e) {
-				e.printStackTrace();
-				return ServerCode.UNKNOWN;
+			finally {
+				this.closeConnection(conn);
 			}
 			
 			this.lastRequestTime = new Date().getTime();
 			
-			ServerCode ret1 = Utils.statusIsOK(document, "jobvalidate");
 			if (ret1 != ServerCode.OK) {
 				this.log.error("Server::HTTPSendFile wrong status (is " + ret1 + ")");
 				return ret1;
@@ -700,6 +1060,9 @@ public class Server extends Thread implements HostnameVerifier, X509TrustManager
 			}
 			catch (IOException ioex) {
 			}
+			finally {
+				this.closeConnection(conn);
+			}
 		}
 		return ServerCode.UNKNOWN;
 	}
@@ -707,65 +1070,49 @@ public class Server extends Thread implements HostnameVerifier, X509TrustManager
 	private String generateXMLForMD5cache() {
 		String xml_str = null;
 		try {
-			DocumentBuilderFactory docFactory = DocumentBuilderFactory.newInstance();
-			DocumentBuilder docBuilder = docFactory.newDocumentBuilder();
-			Document document_cache = docBuilder.newDocument();
-			
-			Element rootElement = document_cache.createElement("cache");
-			document_cache.appendChild(rootElement);
+			StringWriter writer = new StringWriter();
+			XMLStreamWriter document_cache = xml_output_factory.createXMLStreamWriter(writer);
+			document_cache.writeStartDocument("UTF-8", "1.0");
+			document_cache.writeStartElement("cache");
 			
 			List<File> local_files = this.user_config.getLocalCacheFiles();
 			for (File local_file : local_files) {
-				Element node_file = document_cache.createElement("file");
-				rootElement.appendChild(node_file);
+				document_cache.writeEmptyElement("file");
 				try {
 					String extension = local_file.getName().substring(local_file.getName().lastIndexOf('.')).toLowerCase();
 					String name = local_file.getName().substring(0, local_file.getName().length() - 1 * extension.length());
 					if (extension.equals(".zip")) {
-						node_file.setAttribute("md5", name);
+						document_cache.writeAttribute("md5", name);
 					}
 				}
 				catch (StringIndexOutOfBoundsException e) { // because the file does not have an . his path
 				}
 			}
 			
-			TransformerFactory tf = TransformerFactory.newInstance();
-			Transformer transformer = tf.newTransformer();
-			transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "no");
-			StringWriter writer = new StringWriter();
-			transformer.transform(new DOMSource(document_cache), new StreamResult(writer));
-			xml_str = writer.getBuffer().toString();
-		}
-		catch (TransformerConfigurationException e) {
-			this.log.debug("Server::generateXMLForMD5cache " + e);
-		}
-		catch (TransformerException e) {
-			this.log.debug("Server::generateXMLForMD5cache " + e);
+			document_cache.writeEndElement();
+			document_cache.writeEndDocument();
+			document_cache.close();
+			xml_str = writer.toString();
 		}
-		catch (ParserConfigurationException e) {
+		catch (XMLStreamException e) {
 			this.log.debug("Server::generateXMLForMD5cache " + e);
 		}
 		
 		return xml_str;
 	}
 	
-	private void handleFileMD5DeleteDocument(Document document, String root_nodename) {
-		NodeList ns = document.getElementsByTagName(root_nodename);
-		if (ns.getLength() > 0) {
-			Element root_node = (Element) ns.item(0);
-			ns = root_node.getElementsByTagName("file");
-			if (ns.getLength() > 0) {
-				for (int i = 0; i < ns.getLength(); ++i) {
-					Element file_node = (Element) ns.item(i);
-					if (file_node.hasAttribute("md5") && file_node.hasAttribute("action") && file_node.getAttribute("action").equals("delete")) {
-						String path = this.user_config.workingDirectory.getAbsolutePath() + File.separatorChar + file_node.getAttribute("md5");
-						this.log.debug("Server::handleFileMD5DeleteDocument delete old file " + path);
-						File file_to_delete = new File(path + ".zip");
-						file_to_delete.delete();
-						Utils.delete(new File(path));
-					}
-				}
-			}
+	private void handleFileMD5Delete(List<String> md5s_) {
+		for (String md5 : md5s_) {
+			String path = this.user_config.workingDirectory.getAbsolutePath() + File.separatorChar + md5;
+			this.log.debug("Server::handleFileMD5Delete delete old file " + path);
+			File file_to_delete = new File(path + ".zip");
+			file_to_delete.delete();
+			new File(path + ".zip" + PARTIAL_DOWNLOAD_EXTENSION).delete();
+			Utils.delete(new File(path));
+			
+			String renderer_path = this.user_config.getRendererStoreDir().getAbsolutePath() + File.separatorChar + md5;
+			new File(renderer_path + Configuration.EXTRACTED_MARKER_EXTENSION).delete();
+			Utils.delete(new File(renderer_path));
 		}
 	}
 	
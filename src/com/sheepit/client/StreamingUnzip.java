@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2014 Laurent CLOUET
+ * Author Laurent CLOUET <laurent.clouet@nopnop.net>
+ *
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.sheepit.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+
+/**
+ * Extract a zip archive while it's downloaded, everything written in it is extracted by a background thread.
+ * If the extraction can not be done that way (download restarted from the beginning, unsupported archive, ...)
+ * finish will return an error and the archive has to be extracted once it's on the disk.
+ */
+public class StreamingUnzip extends OutputStream {
+	private static final int PIPE_SIZE = 4 * 1024 * 1024;
+	
+	private String directory;
+	private PipedInputStream in;
+	private PipedOutputStream out;
+	private Thread thread;
+	private long position; // number of bytes received
+	private boolean failed;
+	private volatile int ret;
+	
+	public StreamingUnzip(String directory_) throws IOException {
+		this.directory = directory_;
+		this.in = new PipedInputStream(PIPE_SIZE);
+		this.out = new PipedOutputStream(this.in);
+		this.position = 0;
+		this.failed = false;
+		this.ret = -1;
+		
+		this.thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				ret = Utils.unzipStreamIntoDirectory(in, directory);
+				
+				// the central directory at the end of the archive is not read by the extraction
+				// and the writer will be blocked if the pipe is full
+				byte[] buffer = new byte[64 * 1024];
+				try {
+					while (in.read(buffer) != -1) {
+					}
+				}
+				catch (IOException e) {
+				}
+				finally {
+					try {
+						in.close();
+					}
+					catch (IOException e) {
+					}
+				}
+			}
+		});
+		this.thread.start();
+	}
+	
+	/**
+	 * @return number of bytes of the archive already given to the extraction
+	 */
+	public long getPosition() {
+		return this.position;
+	}
+	
+	@Override
+	public void write(int b) {
+		this.write(new byte[] { (byte) b }, 0, 1);
+	}
+	
+	@Override
+	public void write(byte[] b, int off, int len) {
+		// an error of the extraction must not stop the download
+		if (this.failed) {
+			return;
+		}
+		try {
+			this.out.write(b, off, len);
+			this.position += len;
+		}
+		catch (IOException e) {
+			Log.getInstance(null).error("StreamingUnzip::write exception " + e);
+			this.abort();
+		}
+	}
+	
+	/**
+	 * Stop the extraction, the data received from now on are ignored
+	 */
+	public void abort() {
+		this.failed = true;
+		try {
+			this.out.close();
+		}
+		catch (IOException e) {
+		}
+	}
+	
+	/**
+	 * Wait for the end of the extraction
+	 * 
+	 * @return 0 if the whole archive was extracted
+	 */
+	public int finish() {
+		try {
+			this.out.close();
+		}
+		catch (IOException e) {
+		}
+		try {
+			this.thread.join();
+		}
+		catch (InterruptedException e) {
+			return -1;
+		}
+		return this.failed ? -1 : this.ret;
+	}
+}
@@ -21,66 +21,181 @@ package com.sheepit.client;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
-
-import com.sheepit.client.Error.ServerCode;
-
 public class Utils {
+	private static final int UNZIP_BUFFER_SIZE = 256 * 1024;
+	private static final int UNZIP_MAX_THREADS = 8;
+	
 	public static int unzipFileIntoDirectory(String zipFileName_, String jiniHomeParentDirName_) {
-		File rootdir = new File(jiniHomeParentDirName_);
+		return unzipFileIntoDirectory(zipFileName_, jiniHomeParentDirName_, null);
+	}
+	
+	/**
+	 * Extract the archive, the entries are found with the central directory and inflated in parallel.
+	 * 
+	 * @param store_ if not null, the files are linked from the store instead of being written again
+	 */
+	public static int unzipFileIntoDirectory(String zipFileName_, String jiniHomeParentDirName_, final ContentStore store_) {
+		final File rootdir = new File(jiniHomeParentDirName_);
+		ZipFile zip = null;
+		ExecutorService pool = null;
+		List<Future<Void>> tasks = new ArrayList<Future<Void>>();
 		try {
-			ZipInputStream zis = new ZipInputStream(new FileInputStream(zipFileName_));
-			byte[] buffer = new byte[4096];
-			ZipEntry ze;
-			while ((ze = zis.getNextEntry()) != null) {
-				FileOutputStream fos = null;
-				try {
-					File f = new File(rootdir.getAbsolutePath() + File.separator + ze.getName());
-					if (ze.isDirectory()) {
-						f.mkdirs();
-						continue;
-					}
-					else {
-						f.getParentFile().mkdirs();
-						f.createNewFile();
+			zip = new ZipFile(zipFileName_);
+			
+			// create every directory before, the entries will be written by several threads
+			List<ZipEntry> files = new ArrayList<ZipEntry>();
+			Enumeration<? extends ZipEntry> entries = zip.entries();
+			while (entries.hasMoreElements()) {
+				ZipEntry ze = entries.nextElement();
+				File f = new File(rootdir.getAbsolutePath() + File.separator + ze.getName());
+				if (ze.isDirectory()) {
+					f.mkdirs();
+				}
+				else {
+					f.getParentFile().mkdirs();
+					files.add(ze);
+				}
+			}
+			
+			// biggest entries first, otherwise a big file at the end of the archive would be inflated by only one thread
+			Collections.sort(files, new Comparator<ZipEntry>() {
+				@Override
+				public int compare(ZipEntry a, ZipEntry b) {
+					return Long.compare(b.getSize(), a.getSize());
+				}
+			});
+			
+			int nb_threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), UNZIP_MAX_THREADS));
+			pool = Executors.newFixedThreadPool(Math.min(nb_threads, Math.max(1, files.size())));
+			final ZipFile archive = zip;
+			for (final ZipEntry ze : files) {
+				tasks.add(pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						File f = new File(rootdir.getAbsolutePath() + File.separator + ze.getName());
+						byte[] buffer = new byte[(int) Math.max(4096, Math.min(ze.getSize(), UNZIP_BUFFER_SIZE))];
+						InputStream in = null;
 						try {
-							f.setExecutable(true);
+							if (store_ != null && store_.extract(archive, ze, f, buffer)) {
+								return null;
+							}
+							in = archive.getInputStream(ze);
+							writeEntry(in, f, buffer);
+							return null;
 						}
-						catch (NoSuchMethodError e2) {
-							// do nothing it's related to the filesystem
+						catch (IOException e) {
+							Log.getInstance(null).error("Utils::unzipFileIntoDirectory failed to extract " + ze.getName() + " exception " + e);
+							throw e;
 						}
+						finally {
+							if (in != null) {
+								try {
+									in.close();
+								}
+								catch (IOException e) {
+								}
+							}
+						}
+					}
+				}));
+			}
+			for (Future<Void> task : tasks) {
+				task.get();
+			}
+		}
+		catch (ExecutionException e) {
+			// the entry was not written, the directory is not complete
+			for (Future<Void> task : tasks) {
+				task.cancel(false);
+			}
+			return -3;
+		}
+		catch (IllegalArgumentException e) {
+			Log logger = Log.getInstance(null); // might not print the log since the config is null
+			logger.error("Utils::unzipFileIntoDirectory(" + zipFileName_ + "," + jiniHomeParentDirName_ + ") exception " + e);
+			return -2;
+		}
+		catch (Exception e) {
+			Log logger = Log.getInstance(null); // might not print the log since the config is null
+			logger.error("Utils::unzipFileIntoDirectory(" + zipFileName_ + "," + jiniHomeParentDirName_ + ") exception " + e);
+			return -1;
+		}
+		finally {
+			if (pool != null) {
+				// the entries being written must be done before the caller removes the directory, and before the archive is closed
+				pool.shutdownNow();
+				boolean interrupted = false;
+				while (pool.isTerminated() == false) {
+					try {
+						pool.awaitTermination(1, TimeUnit.MINUTES);
 					}
-					
-					fos = new FileOutputStream(f);
-					int numBytes;
-					while ((numBytes = zis.read(buffer, 0, buffer.length)) != -1) {
-						fos.write(buffer, 0, numBytes);
+					catch (InterruptedException e) {
+						interrupted = true;
 					}
-					fos.close();
 				}
-				catch (Exception e1) {
-					e1.printStackTrace();
+				if (interrupted) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			if (zip != null) {
+				try {
+					zip.close();
+				}
+				catch (IOException e) {
 				}
-				if (fos != null) {
+			}
+		}
+		return 0;
+	}
+	
+	/**
+	 * Extract the archive, the entries are written as soon as they are read so it can be used on an archive being downloaded.
+	 * The stream is not closed.
+	 */
+	public static int unzipStreamIntoDirectory(InputStream in_, String jiniHomeParentDirName_) {
+		File rootdir = new File(jiniHomeParentDirName_);
+		try {
+			ZipInputStream zis = new ZipInputStream(in_);
+			byte[] buffer = new byte[UNZIP_BUFFER_SIZE];
+			ZipEntry ze;
+			while ((ze = zis.getNextEntry()) != null) {
+				File f = new File(rootdir.getAbsolutePath() + File.separator + ze.getName());
+				if (ze.isDirectory()) {
+					f.mkdirs();
+				}
+				else {
+					f.getParentFile().mkdirs();
 					try {
-						fos.close();
+						writeEntry(zis, f, buffer);
 					}
-					catch (IOException e) {
+					catch (IOException e1) {
+						Log.getInstance(null).error("Utils::unzipStreamIntoDirectory failed to extract " + ze.getName() + " exception " + e1);
+						return -3;
 					}
 				}
 				zis.closeEntry();
@@ -88,55 +203,83 @@ public class Utils {
 		}
 		catch (IllegalArgumentException e) {
 			Log logger = Log.getInstance(null); // might not print the log since the config is null
-			logger.error("Utils::unzipFileIntoDirectory(" + zipFileName_ + "," + jiniHomeParentDirName_ + ") exception " + e);
+			logger.error("Utils::unzipStreamIntoDirectory(" + jiniHomeParentDirName_ + ") exception " + e);
 			return -2;
 		}
 		catch (Exception e) {
 			Log logger = Log.getInstance(null); // might not print the log since the config is null
-			logger.error("Utils::unzipFileIntoDirectory(" + zipFileName_ + "," + jiniHomeParentDirName_ + ") exception " + e);
+			logger.error("Utils::unzipStreamIntoDirectory(" + jiniHomeParentDirName_ + ") exception " + e);
 			return -1;
 		}
 		return 0;
 	}
 	
-	public static String md5(String path_of_file_) {
-		MessageDigest digest;
+	/**
+	 * Write the content of an entry of an archive in f, the file is executable
+	 */
+	private static void writeEntry(InputStream in_, File f, byte[] buffer_) throws IOException {
+		f.createNewFile();
 		try {
-			digest = MessageDigest.getInstance("MD5");
+			f.setExecutable(true);
 		}
-		catch (NoSuchAlgorithmException e1) {
-			e1.printStackTrace();
+		catch (NoSuchMethodError e2) {
+			// do nothing it's related to the filesystem
+		}
+		
+		FileOutputStream fos = new FileOutputStream(f);
+		try {
+			int numBytes;
+			while ((numBytes = in_.read(buffer_, 0, buffer_.length)) != -1) {
+				fos.write(buffer_, 0, numBytes);
+			}
+		}
+		finally {
+			fos.close();
+		}
+	}
+	
+	public static String md5(String path_of_file_) {
+		MessageDigest digest = Utils.md5Digest();
+		if (digest == null) {
 			return "";
 		}
 		File f = new File(path_of_file_);
-		InputStream is;
 		try {
-			is = new FileInputStream(f);
+			Utils.updateDigest(digest, f, f.length());
+			return Utils.digestToString(digest);
 		}
-		catch (FileNotFoundException e1) {
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+		return "";
+	}
+	
+	/**
+	 * @return a new MD5 digest, or null if the algorithm is not available
+	 */
+	public static MessageDigest md5Digest() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		}
+		catch (NoSuchAlgorithmException e1) {
 			e1.printStackTrace();
-			return "";
+			return null;
 		}
-		byte[] buffer = new byte[8192];
+	}
+	
+	/**
+	 * Update the digest with the first length_ bytes of the file
+	 */
+	public static void updateDigest(MessageDigest digest_, File file_, long length_) throws IOException {
+		InputStream is = new FileInputStream(file_);
+		byte[] buffer = new byte[512 * 1024];
+		long remaining = length_;
 		int read = 0;
 		try {
-			while ((read = is.read(buffer)) > 0) {
-				digest.update(buffer, 0, read);
+			while (remaining > 0 && (read = is.read(buffer, 0, (int) Math.min(buffer.length, remaining))) > 0) {
+				digest_.update(buffer, 0, read);
+				remaining -= read;
 			}
-			byte[] md5sum = digest.digest();
-			BigInteger bigInt = new BigInteger(1, md5sum);
-			
-			String output = bigInt.toString(16);
-			
-			// fill with "0" because bigInt.toString does not add 0 at the beginning of the result
-			int zero_to_add = 32 - output.length();
-			for (int i = 0; i < zero_to_add; i++)
-				output = "0" + output;
-			
-			return output;
-		}
-		catch (IOException e) {
-			e.printStackTrace();
 		}
 		finally {
 			try {
@@ -147,7 +290,49 @@ public class Utils {
 				//throw new RuntimeException("Unable to close input stream for MD5 calculation", e);
 			}
 		}
-		return "";
+	}
+	
+	/**
+	 * Write the bytes between start_ and end_ of the file in out_
+	 */
+	public static void copy(File file_, long start_, long end_, OutputStream out_) throws IOException {
+		InputStream is = new FileInputStream(file_);
+		byte[] buffer = new byte[512 * 1024];
+		long remaining = end_ - start_;
+		int read = 0;
+		try {
+			if (is.skip(start_) != start_) {
+				throw new IOException("file " + file_ + " is smaller than " + start_);
+			}
+			while (remaining > 0 && (read = is.read(buffer, 0, (int) Math.min(buffer.length, remaining))) > 0) {
+				out_.write(buffer, 0, read);
+				remaining -= read;
+			}
+		}
+		finally {
+			try {
+				is.close();
+			}
+			catch (IOException e) {
+			}
+		}
+	}
+	
+	/**
+	 * @return the hexadecimal representation of the digest
+	 */
+	public static String digestToString(MessageDigest digest_) {
+		byte[] md5sum = digest_.digest();
+		BigInteger bigInt = new BigInteger(1, md5sum);
+		
+		String output = bigInt.toString(16);
+		
+		// fill with "0" because bigInt.toString does not add 0 at the beginning of the result
+		int zero_to_add = md5sum.length * 2 - output.length();
+		for (int i = 0; i < zero_to_add; i++)
+			output = "0" + output;
+		
+		return output;
 	}
 	
 	public static double lastModificationTime(File directory_) {
@@ -170,18 +355,6 @@ public class Utils {
 		return max;
 	}
 	
-	public static ServerCode statusIsOK(Document document_, String rootname_) {
-		NodeList ns = document_.getElementsByTagName(rootname_);
-		if (ns.getLength() == 0) {
-			return Error.ServerCode.ERROR_NO_ROOT;
-		}
-		Element a_node = (Element) ns.item(0);
-		if (a_node.hasAttribute("status")) {
-			return Error.ServerCode.fromInt(Integer.parseInt(a_node.getAttribute("status")));
-		}
-		return Error.ServerCode.UNKNOWN;
-	}
-	
 	/**
 	 * Will recursively delete a directory
 	 */
@@ -200,7 +373,28 @@ public class Utils {
 				}
 			}
 		}
-		file.delete();
+		if (file.delete() == false && file.isFile() && file.canWrite() == false) {
+			// read-only file of the content store, windows does not remove them
+			file.setWritable(true, false);
+			file.delete();
+		}
+	}
+	
+	/**
+	 * @return size in bytes of the file or of everything inside the directory
+	 */
+	public static long size(File file) {
+		if (file.isDirectory()) {
+			long size = 0;
+			File[] files = file.listFiles();
+			if (files != null) {
+				for (File child : files) {
+					size += size(child);
+				}
+			}
+			return size;
+		}
+		return file.length();
 	}
 	
 	public static long parseNumber(String in) {
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2014 Laurent CLOUET
+ * Author Laurent CLOUET <laurent.clouet@nopnop.net>
+ *
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.sheepit.client;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Frames rendered but not validated yet, they are kept on the disk so they can be sent after a restart of the client.
+ * Each frame has its image and a <job>_<frame>.job file with what is needed to validate it.
+ */
+public class ValidationJournal {
+	private static final String ENTRY_EXTENSION = ".job";
+	private static final String TEMP_EXTENSION = ".tmp";
+	
+	private File directory;
+	private Log log;
+	
+	public ValidationJournal(File directory_) {
+		this.directory = directory_;
+		this.log = Log.getInstance(null);
+	}
+	
+	/**
+	 * Move the image of the job in the journal and record the job
+	 * 
+	 * @return false if the job could not be recorded, it can still be validated but not after a restart
+	 */
+	public boolean add(Job ajob) {
+		if (this.directory.exists() == false) {
+			this.directory.mkdirs();
+		}
+		String key = this.getKey(ajob);
+		
+		File image = new File(ajob.getOutputImagePath());
+		String extension = image.getName().lastIndexOf('.') > 0 ? image.getName().substring(image.getName().lastIndexOf('.')) : "";
+		File journal_image = new File(this.directory, key + extension);
+		if (image.equals(journal_image) == false) {
+			if (image.renameTo(journal_image) == false) {
+				this.log.error("ValidationJournal::add failed to move " + image + " to " + journal_image);
+				return false;
+			}
+			ajob.setOutputImagePath(journal_image.getAbsolutePath());
+		}
+		
+		Properties entry = new Properties();
+		entry.setProperty("id", ajob.getId());
+		entry.setProperty("frame", ajob.getFrameNumber());
+		entry.setProperty("revision", ajob.getRevision());
+		entry.setProperty("extras", ajob.getExtras() == null ? "" : ajob.getExtras());
+		entry.setProperty("render_duration", Integer.toString(ajob.getRenderDuration()));
+		entry.setProperty("memory_used", Long.toString(ajob.getMemoryUsed()));
+		entry.setProperty("cores", Integer.toString(ajob.getNbCores()));
+		entry.setProperty("image", journal_image.getName());
+		
+		// written in a temporary file first, a crash must not leave an incomplete entry
+		File temp = new File(this.directory, key + ENTRY_EXTENSION + TEMP_EXTENSION);
+		File file = new File(this.directory, key + ENTRY_EXTENSION);
+		OutputStream out = null;
+		try {
+			out = new FileOutputStream(temp);
+			entry.store(out, null);
+			out.close();
+			out = null;
+			file.delete();
+			if (temp.renameTo(file) == false) {
+				throw new IOException("failed to rename " + temp + " to " + file);
+			}
+		}
+		catch (IOException e) {
+			this.log.error("ValidationJournal::add failed to write " + file + " " + e);
+			return false;
+		}
+		finally {
+			if (out != null) {
+				try {
+					out.close();
+				}
+				catch (IOException e) {
+				}
+			}
+			temp.delete();
+		}
+		return true;
+	}
+	
+	/**
+	 * Forget the job, its image is removed too
+	 */
+	public void remove(Job ajob) {
+		new File(this.directory, this.getKey(ajob) + ENTRY_EXTENSION).delete();
+		if (ajob.getOutputImagePath() != null) {
+			File image = new File(ajob.getOutputImagePath());
+			if (this.directory.equals(image.getAbsoluteFile().getParentFile())) {
+				image.delete();
+			}
+		}
+	}
+	
+	/**
+	 * @return jobs left by the previous run of the client, the incomplete entries are removed
+	 */
+	public List<Job> load(Configuration config_) {
+		List<Job> jobs = new ArrayList<Job>();
+		File[] files = this.directory.listFiles();
+		if (files == null) {
+			return jobs;
+		}
+		
+		List<String> images = new ArrayList<String>();
+		for (File file : files) {
+			if (file.getName().endsWith(ENTRY_EXTENSION) == false) {
+				continue;
+			}
+			Properties entry = new Properties();
+			InputStream in = null;
+			try {
+				in = new FileInputStream(file);
+				entry.load(in);
+				
+				File image = new File(this.directory, entry.getProperty("image", ""));
+				if (image.isFile() == false) {
+					this.log.error("ValidationJournal::load image of " + file + " is missing");
+					file.delete();
+					continue;
+				}
+				
+				Job ajob = new Job(config_, entry.getProperty("id"), entry.getProperty("frame"), entry.getProperty("revision"), null, false, null, null, "", "", entry.getProperty("extras"));
+				ajob.setRenderDuration(Integer.parseInt(entry.getProperty("render_duration")));
+				ajob.setMemoryUsed(Long.parseLong(entry.getProperty("memory_used")));
+				ajob.setNbCores(Integer.parseInt(entry.getProperty("cores")));
+				ajob.setOutputImagePath(image.getAbsolutePath());
+				jobs.add(ajob);
+				images.add(image.getName());
+			}
+			catch (IOException e) {
+				this.log.error("ValidationJournal::load failed to read " + file + " " + e);
+				file.delete();
+			}
+			catch (NumberFormatException e) {
+				this.log.error("ValidationJournal::load corrupted entry " + file + " " + e);
+				file.delete();
+			}
+			finally {
+				if (in != null) {
+					try {
+						in.close();
+					}
+					catch (IOException e) {
+					}
+				}
+			}
+		}
+		
+		// images moved before a crash, without their entry
+		for (File file : files) {
+			if (file.exists() && file.getName().endsWith(ENTRY_EXTENSION) == false && images.contains(file.getName()) == false) {
+				file.delete();
+			}
+		}
+		return jobs;
+	}
+	
+	private String getKey(Job ajob) {
+		return ajob.getId() + "_" + ajob.getFrameNumber();
+	}
+}
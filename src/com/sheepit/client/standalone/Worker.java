@@ -64,15 +64,42 @@ public class Worker {
 	@Option(name = "--gpu", aliases = { "-g" }, usage = "CUDA name of the GPU used for the render, for example CUDA_0", metaVar = "CUDA_0")
 	private String gpu_device = null;
 	
-	@Option(name = "--compute-method", aliases = { "-m" }, usage = "CPU: only use cpu, GPU: only use gpu, CPU_GPU: can use cpu OR gpu, if -gpu is not set it will not use the gpu", metaVar = "CPU_GPU")
+	@Option(name = "--compute-method", aliases = { "-m" }, usage = "CPU: only use cpu, GPU: only use gpu, CPU_GPU: can use cpu OR gpu, CPU_AND_GPU: render on the cpu and on the gpu at the same time, if -gpu is not set it will not use the gpu", metaVar = "CPU_GPU")
 	private String method = null;
 	
 	@Option(name = "--cores", usage = "Number of core/thread to use for the render", metaVar = "3")
 	private int nb_cores = -1;
 	
+	@Option(name = "--slots", usage = "Number of frames rendered at the same time, the cores are shared between them", metaVar = "4")
+	private int nb_slots = 1;
+	
+	@Option(name = "--download-segments", usage = "Number of connections used to download a large archive", metaVar = "4")
+	private int download_segments = 1;
+	
+	@Option(name = "--upload-connections", usage = "Number of frames sent to the server at the same time", metaVar = "2")
+	private int upload_connections = 2;
+	
+	@Option(name = "--metrics-port", usage = "Serve the metrics of the client in the Prometheus format on http://<metrics-bind>:<port>/metrics", metaVar = "9100")
+	private int metrics_port = -1;
+	
+	@Option(name = "--metrics-bind", usage = "Address of the interface the metrics endpoint listens on", metaVar = "127.0.0.1")
+	private String metrics_bind = "127.0.0.1";
+	
+	@Option(name = "--cache-size", usage = "Max size of the cache in MB, the least recently used renderers and scenes are removed when it's exceeded", metaVar = "20000")
+	private long cache_size = -1;
+	
+	@Option(name = "--dedup", usage = "Hardlink the files who are the same in several scenes instead of extracting them again, the cache directory must be on a filesystem supporting hardlinks")
+	private boolean dedup = false;
+	
+	@Option(name = "--compress-error-reports", usage = "Send the log of the error reports compressed with gzip, the server must support it")
+	private boolean compress_error_reports = false;
+	
 	@Option(name = "--verbose", aliases = { "-log" }, usage = "Display log")
 	private boolean print_log = false;
 	
+	@Option(name = "--log-tail", usage = "Number of lines kept at the end of the log of a frame, they are sent with the error reports", metaVar = "5000")
+	private int log_tail = Log.DEFAULT_TAIL_SIZE;
+	
 	@Option(name = "--request-time", usage = "H1:M1-H2:M2,H3:M3-H4:M4 Use the 24h format\nFor example to request job between 2am-8.30am and 5pm-11pm you should do --request-time 2:00-8:30,17:00-23:00\nCaution, it's the requesting job time to get a project not the working time", metaVar = "2:00-8:30,17:00-23:00")
 	private String request_time = null;
 	
@@ -82,6 +109,9 @@ public class Worker {
 	@Option(name = "--extras", aliases = { "-e" }, usage = "Extras data push on the authentication request")
 	private String extras = null;
 	
+	@Option(name = "--prefetch", usage = "Request and download the next job while the current frame is rendering")
+	private boolean prefetch = false;
+	
 	@Option(name = "--oneline", aliases = { "-ol" }, usage = "Use oneliner interface")
 	private boolean ui_oneline = false;
 	
@@ -92,6 +122,11 @@ public class Worker {
 	private String config_file = null;
 	
 	public static void main(String[] args) {
+		if (System.getProperty("http.maxConnections") == null) {
+			// size of the pool of idle keep-alive connections of every HttpURLConnection of the jvm,
+			// the default (5) is too small when several slots are working
+			System.setProperty("http.maxConnections", "16");
+		}
 		new Worker().doMain(args);
 	}
 	
@@ -131,6 +166,7 @@ public class Worker {
 		}
 		
 		ComputeType compute_method = ComputeType.CPU_GPU;
+		boolean cpu_and_gpu = false;
 		Configuration config = new Configuration(null, login, password);
 		config.setPrintLog(print_log);
 		
@@ -211,6 +247,58 @@ public class Worker {
 			config.setUseNbCores(nb_cores);
 		}
 		
+		if (nb_slots < 1) {
+			System.err.println("Error: slots should be a greater than zero");
+			return;
+		}
+		else {
+			config.setNbRenderSlots(nb_slots);
+		}
+		
+		if (download_segments < 1) {
+			System.err.println("Error: download-segments should be a greater than zero");
+			return;
+		}
+		else {
+			config.setDownloadSegments(download_segments);
+		}
+		
+		if (upload_connections < 1) {
+			System.err.println("Error: upload-connections should be a greater than zero");
+			return;
+		}
+		else {
+			config.setUploadConnections(upload_connections);
+		}
+		
+		if (metrics_port != -1) {
+			if (metrics_port < 0 || metrics_port > 65535) {
+				System.err.println("Error: metrics-port should be between 0 and 65535");
+				return;
+			}
+			config.setMetricsPort(metrics_port);
+			config.setMetricsBind(metrics_bind);
+		}
+		
+		if (cache_size != -1) {
+			if (cache_size < 0) {
+				System.err.println("Error: cache-size should be a positive number");
+				return;
+			}
+			config.setMaxCacheSize(cache_size * 1024 * 1024);
+		}
+		
+		config.setDedupSceneFiles(dedup);
+		config.setCompressErrorReports(compress_error_reports);
+		
+		if (log_tail < 0) {
+			System.err.println("Error: log-tail should be a positive number");
+			return;
+		}
+		else {
+			config.setLogTailSize(log_tail);
+		}
+		
 		if (method != null) {
 			if (method.equalsIgnoreCase("cpu")) {
 				compute_method = ComputeType.CPU_ONLY;
@@ -221,6 +309,14 @@ public class Worker {
 			else if (method.equalsIgnoreCase("cpu_gpu") || method.equalsIgnoreCase("gpu_cpu")) {
 				compute_method = ComputeType.CPU_GPU;
 			}
+			else if (method.equalsIgnoreCase("cpu_and_gpu") || method.equalsIgnoreCase("gpu_and_cpu")) {
+				if (gpu_device == null) {
+					System.err.println("Error: compute-method CPU_AND_GPU requires a gpu");
+					System.exit(2);
+				}
+				compute_method = ComputeType.CPU_GPU;
+				cpu_and_gpu = true;
+			}
 			else {
 				System.err.println("Error: compute-method unknown");
 				System.exit(2);
@@ -260,6 +356,9 @@ public class Worker {
 			config.setExtras(extras);
 		}
 		
+		config.setPrefetchJob(prefetch);
+		config.setRenderCPUAndGPU(cpu_and_gpu);
+		
 		if (compute_method == ComputeType.CPU_ONLY) { // the client was to render with cpu but on the server side project type are cpu+gpu or gpu prefered but never cpu only
 			compute_method = ComputeType.CPU_GPU;
 			config.setComputeMethod(compute_method);